@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Fixtures shared by the benchmarks. Everything is created from constants, so every run measures the same work.
+ */
+public final class BenchmarkFixtures {
+
+	public static final String JS_SCRIPT = "bench.js";
+
+	public static final String JS_SOURCE = "var total = 0;\n" +
+			"for (var i = 0; i < 100; i++) total += i;\n" +
+			"total + (typeof name === 'undefined' ? '' : name);\n";
+
+	public static final String JAVA_SCRIPT = BenchmarkScript.class.getName();
+
+	public static final Map<String, String> VARIABLES = Map.of("name", "benchmark", "value", "42");
+
+	private BenchmarkFixtures() {
+	}
+
+	/**
+	 * @return a new temporary directory containing the JS fixture
+	 */
+	public static Path createRootDirectory() {
+		try {
+			final Path rootDirectory = Files.createTempDirectory("qwazr-scripts-jmh");
+			Files.write(rootDirectory.resolve(JS_SCRIPT), JS_SOURCE.getBytes(StandardCharsets.UTF_8));
+			return rootDirectory;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public static void deleteDirectory(final Path directory) {
+		if (directory == null || !Files.exists(directory))
+			return;
+		try (final Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * A minimal Java script: the cost of a run is the cost of the pipeline.
+	 */
+	public static class BenchmarkScript implements ScriptInterface<Integer> {
+
+		@Override
+		public Integer run(final Map<String, ?> variables) {
+			return variables.size();
+		}
+	}
+}
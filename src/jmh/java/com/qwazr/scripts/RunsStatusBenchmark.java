@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listing the runs of a large registry: every run, and a filter which matches only the last runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RunsStatusBenchmark {
+
+	@Param({ "1000", "10000" })
+	public int runs;
+
+	private Path rootDirectory;
+	private ExecutorService executorService;
+	private ScriptManager scriptManager;
+	private long since;
+
+	@Setup
+	public void setup() {
+		rootDirectory = BenchmarkFixtures.createRootDirectory();
+		executorService = Executors.newCachedThreadPool();
+		scriptManager = new ScriptManager(executorService, (String) null, null, rootDirectory,
+				ScriptsConfiguration.of().retentionTime(TimeUnit.HOURS.toMillis(1)).build());
+		for (int i = 0; i < runs; i++) {
+			if (i == runs - 10)
+				since = System.currentTimeMillis();
+			scriptManager.runSync(BenchmarkFixtures.JAVA_SCRIPT, BenchmarkFixtures.VARIABLES);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		scriptManager.close();
+		executorService.shutdown();
+		BenchmarkFixtures.deleteDirectory(rootDirectory);
+	}
+
+	@Benchmark
+	public Map<String, ScriptRunStatus<?>> getRunsStatus() {
+		return scriptManager.getService().getRunsStatus();
+	}
+
+	@Benchmark
+	public Map<String, ScriptRunStatus<?>> getRunsStatusSince() {
+		return scriptManager.getService().getRunsStatus(since, null, null);
+	}
+
+	@Benchmark
+	public Map<String, ScriptRunStatus<?>> getRunsStatusErrors() {
+		return scriptManager.getService()
+				.getRunsStatus(null, Set.of(ScriptRunStatus.ScriptState.error), BenchmarkFixtures.JAVA_SCRIPT);
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Synchronous execution of a JS script (with both JS runners) and of a Java script.
+ * Only the last run of each script is retained, so the registry does not grow during the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ScriptManagerBenchmark {
+
+	@Param({ "scriptengine", "polyglot" })
+	public ScriptsConfiguration.JsRunner jsRunner;
+
+	private Path rootDirectory;
+	private ExecutorService executorService;
+	private ScriptManager scriptManager;
+
+	@Setup
+	public void setup() {
+		rootDirectory = BenchmarkFixtures.createRootDirectory();
+		executorService = Executors.newCachedThreadPool();
+		scriptManager = new ScriptManager(executorService, (String) null, null, rootDirectory,
+				ScriptsConfiguration.of().jsRunner(jsRunner).retentionCount(1).build());
+	}
+
+	@TearDown
+	public void tearDown() {
+		scriptManager.close();
+		executorService.shutdown();
+		BenchmarkFixtures.deleteDirectory(rootDirectory);
+	}
+
+	@Benchmark
+	public Object runSyncJs() {
+		return scriptManager.runSync(BenchmarkFixtures.JS_SCRIPT, BenchmarkFixtures.VARIABLES).getResult();
+	}
+
+	@Benchmark
+	public Object runSyncJava() {
+		return scriptManager.runSync(BenchmarkFixtures.JAVA_SCRIPT, BenchmarkFixtures.VARIABLES).getResult();
+	}
+}
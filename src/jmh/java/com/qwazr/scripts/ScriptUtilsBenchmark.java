@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Value;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of a large nested script result to Java objects.
+ * Run with: mvn -P jmh verify -Djmh.args="-f 1 ScriptUtilsBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ScriptUtilsBenchmark {
+
+	@Param({ "1000", "10000" })
+	public int size;
+
+	private Context context;
+	private Value result;
+
+	@Setup
+	public void setup() {
+		context = Context.create("js");
+		result = context.eval("js", "Array.from({length: " + size + "}, (_, i) => ({" +
+				"id: i, name: 'item' + i, score: i / 3, big: 9007199254740991 - i, active: i % 2 == 0," +
+				"tags: ['a', 'b', 'c'], values: [i, i + 1, i + 2, i + 3], ratios: [0.5, 1.5, i / 7]," +
+				"child: {label: 'child' + i, depth: 2}}))");
+	}
+
+	@TearDown
+	public void tearDown() {
+		context.close();
+	}
+
+	@Benchmark
+	public Object toJava() {
+		return ScriptUtils.toJava(result);
+	}
+
+	@Benchmark
+	public List<?> fromJson() throws IOException {
+		return ScriptUtils.fromJson(result, List.class);
+	}
+
+	@Benchmark
+	public Item[] fromJsonTyped() throws IOException {
+		return ScriptUtils.fromJson(result, Item[].class);
+	}
+
+	public static class Item {
+
+		public int id;
+		public String name;
+		public double score;
+		public long big;
+		public boolean active;
+		public List<String> tags;
+		public long[] values;
+		public double[] ratios;
+		public Map<String, Object> child;
+	}
+}
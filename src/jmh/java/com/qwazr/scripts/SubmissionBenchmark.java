@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import com.qwazr.server.ServerException;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asynchronous submissions from several threads at the same time.
+ * The accepted and the rejected (queue full) submissions are reported separately.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+public class SubmissionBenchmark {
+
+	private Path rootDirectory;
+	private ExecutorService executorService;
+	private ScriptManager scriptManager;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Submissions {
+
+		public long accepted;
+		public long rejected;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			accepted = 0;
+			rejected = 0;
+		}
+	}
+
+	@Setup
+	public void setup() {
+		rootDirectory = BenchmarkFixtures.createRootDirectory();
+		executorService = Executors.newCachedThreadPool();
+		scriptManager = new ScriptManager(executorService, (String) null, null, rootDirectory,
+				ScriptsConfiguration.of().maxQueueSize(10_000).retentionCount(1).build());
+	}
+
+	@TearDown
+	public void tearDown() {
+		scriptManager.close();
+		executorService.shutdown();
+		BenchmarkFixtures.deleteDirectory(rootDirectory);
+	}
+
+	@Benchmark
+	public Object runAsync(final Submissions submissions) {
+		try {
+			final Object status = scriptManager.runAsync(BenchmarkFixtures.JAVA_SCRIPT, BenchmarkFixtures.VARIABLES);
+			submissions.accepted++;
+			return status;
+		} catch (ServerException e) {
+			submissions.rejected++;
+			return e;
+		}
+	}
+}
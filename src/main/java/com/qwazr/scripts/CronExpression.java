@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.BitSet;
+
+/**
+ * A classic five fields cron expression: minute, hour, day of month, month and day of week (0 or 7 is Sunday).
+ * Each field accepts '*', values, ranges (a-b), steps (*&#47;n or a-b/n) and lists separated by commas.
+ * As in cron, when both the day of month and the day of week are restricted, a day matching either one matches.
+ */
+class CronExpression {
+
+	/**
+	 * The search of the next fire time gives up after this number of years
+	 */
+	private static final int MAX_YEARS = 5;
+
+	private final String expression;
+	private final BitSet minutes;
+	private final BitSet hours;
+	private final BitSet daysOfMonth;
+	private final BitSet months;
+	private final BitSet daysOfWeek;
+	private final boolean anyDayOfMonth;
+	private final boolean anyDayOfWeek;
+
+	CronExpression(final String expression) {
+		this.expression = expression;
+		final String[] fields = expression.trim().split("\\s+");
+		if (fields.length != 5)
+			throw new IllegalArgumentException("A cron expression requires 5 fields: " + expression);
+		minutes = parseField(fields[0], 0, 59);
+		hours = parseField(fields[1], 0, 23);
+		daysOfMonth = parseField(fields[2], 1, 31);
+		months = parseField(fields[3], 1, 12);
+		daysOfWeek = parseField(fields[4], 0, 7);
+		if (daysOfWeek.get(7))
+			daysOfWeek.set(0);
+		anyDayOfMonth = "*".equals(fields[2]);
+		anyDayOfWeek = "*".equals(fields[4]);
+	}
+
+	private BitSet parseField(final String field, final int min, final int max) {
+		final BitSet bits = new BitSet(max + 1);
+		for (final String part : field.split(",")) {
+			final int slash = part.indexOf('/');
+			final String range = slash == -1 ? part : part.substring(0, slash);
+			final int step = slash == -1 ? 1 : parseValue(part.substring(slash + 1), 1, max);
+			final int from;
+			final int to;
+			if ("*".equals(range)) {
+				from = min;
+				to = max;
+			} else {
+				final int dash = range.indexOf('-');
+				if (dash == -1) {
+					from = parseValue(range, min, max);
+					to = slash == -1 ? from : max;
+				} else {
+					from = parseValue(range.substring(0, dash), min, max);
+					to = parseValue(range.substring(dash + 1), from, max);
+				}
+			}
+			for (int i = from; i <= to; i += step)
+				bits.set(i);
+		}
+		return bits;
+	}
+
+	private int parseValue(final String value, final int min, final int max) {
+		final int number;
+		try {
+			number = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid cron value: " + value + " in " + expression);
+		}
+		if (number < min || number > max)
+			throw new IllegalArgumentException(
+					"The cron value " + value + " is not between " + min + " and " + max + " in " + expression);
+		return number;
+	}
+
+	private boolean matchesDay(final ZonedDateTime time) {
+		final boolean dayOfMonth = daysOfMonth.get(time.getDayOfMonth());
+		final boolean dayOfWeek = daysOfWeek.get(time.getDayOfWeek().getValue() % 7);
+		if (anyDayOfMonth || anyDayOfWeek)
+			return dayOfMonth && dayOfWeek;
+		return dayOfMonth || dayOfWeek;
+	}
+
+	/**
+	 * @param after the time (epoch ms) after which the next fire time is searched
+	 * @param zone  the time zone of the expression
+	 * @return the first matching minute strictly after the given time (epoch ms), or -1 if there is none
+	 */
+	long next(final long after, final ZoneId zone) {
+		ZonedDateTime time =
+				Instant.ofEpochMilli(after).atZone(zone).truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);
+		final int maxYear = time.getYear() + MAX_YEARS;
+		while (time.getYear() <= maxYear) {
+			if (!months.get(time.getMonthValue())) {
+				time = time.withDayOfMonth(1).truncatedTo(ChronoUnit.DAYS).plusMonths(1);
+				continue;
+			}
+			if (!matchesDay(time)) {
+				time = time.truncatedTo(ChronoUnit.DAYS).plusDays(1);
+				continue;
+			}
+			if (!hours.get(time.getHour())) {
+				time = time.truncatedTo(ChronoUnit.HOURS).plusHours(1);
+				continue;
+			}
+			if (!minutes.get(time.getMinute())) {
+				time = time.plusMinutes(1);
+				continue;
+			}
+			return time.toInstant().toEpochMilli();
+		}
+		return -1;
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+}
@@ -16,32 +16,22 @@
 package com.qwazr.scripts;
 
 import com.qwazr.library.LibraryServiceInterface;
-import com.qwazr.server.ServerException;
-import com.qwazr.utils.ClassLoaderUtils;
 
-import javax.ws.rs.core.Response;
-import java.lang.reflect.Constructor;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Objects;
 
 class JavaRunThread extends RunThreadAbstract<Object> {
 
 	private final Map<String, Object> variables;
-	private final Class<?> scriptClass;
-	private final Constructor<?> constructor;
+	private final ScriptClass scriptClass;
 	private final LibraryServiceInterface libraryService;
 
-	JavaRunThread(final String myAddress, final LibraryServiceInterface libraryService, final String className,
+	JavaRunThread(final String myAddress, final LibraryServiceInterface libraryService,
+			final ScriptClass scriptClass, final OutputBuffer.Settings outputSettings,
 			final Map<String, ?> initialVariables) {
-		super(myAddress, className, initialVariables);
+		super(myAddress, scriptClass.className, scriptClass.definition, outputSettings, initialVariables);
 		this.libraryService = libraryService;
-		try {
-			scriptClass = ClassLoaderUtils.findClass(className);
-			constructor = scriptClass.getConstructor();
-		} catch (ClassNotFoundException | NoSuchMethodException e) {
-			throw new ServerException(Response.Status.NOT_FOUND, "Class not found: " + className);
-		}
+		this.scriptClass = scriptClass;
 		variables = new HashMap<>();
 		if (initialVariables != null)
 			variables.putAll(initialVariables);
@@ -49,16 +39,19 @@ class JavaRunThread extends RunThreadAbstract<Object> {
 
 	@Override
 	protected Object runner() throws Exception {
-		Objects.requireNonNull(scriptClass, "Cannot create instance of " + scriptClass);
-		final Object script = constructor.newInstance();
-		if (libraryService != null)
-			libraryService.inject(script);
+		final Object script = scriptClass.acquire(libraryService);
+		final Object result = run(script);
+		scriptClass.release(script);
+		return result;
+	}
+
+	private Object run(final Object script) throws Exception {
 		if (script instanceof ScriptInterface)
 			return ((ScriptInterface<?>) script).run(variables);
 		else if (script instanceof Runnable)
 			((Runnable) script).run();
 		else
-			throw new IllegalAccessException("Class execution not supported: " + scriptClass);
+			throw new IllegalAccessException("Class execution not supported: " + scriptClass.scriptClass);
 		return true;
 	}
 
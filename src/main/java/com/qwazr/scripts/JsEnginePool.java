@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import com.qwazr.utils.LoggerUtils;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptEngineManager;
+import java.io.BufferedReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.logging.Logger;
+
+/**
+ * A fixed set of script engines created by the same factory.
+ * With GraalJS, they all share the same polyglot Engine, therefore the parsed ASTs and the JIT code are reused.
+ * A run borrows one engine for its whole execution.
+ * The engines are handed out in LIFO order to keep the most recently used (and warmest) ones busy.
+ */
+class JsEnginePool {
+
+	private static final Logger LOGGER = LoggerUtils.getLogger(JsEnginePool.class);
+
+	private final List<JsEngine> engines;
+	private final BlockingDeque<JsEngine> available;
+
+	JsEnginePool(final int poolSize, final int scriptCacheSize) {
+		final ScriptEngineFactory factory =
+				Objects.requireNonNull(initScriptEngineFactory(), "No javascript engine found");
+		LOGGER.info(() -> "Init scriptEngine pool: " + factory.getEngineName() + " x " + poolSize);
+		engines = new ArrayList<>(poolSize);
+		available = new LinkedBlockingDeque<>(poolSize);
+		for (int i = 0; i < poolSize; i++) {
+			final JsEngine engine = new JsEngine(factory.getScriptEngine(), scriptCacheSize);
+			engines.add(engine);
+			available.add(engine);
+		}
+	}
+
+	private static ScriptEngineFactory initScriptEngineFactory() {
+		final ScriptEngineManager manager = new ScriptEngineManager(Thread.currentThread().getContextClassLoader());
+		ScriptEngine scriptEngine = manager.getEngineByName("graal.js");
+		if (scriptEngine == null)
+			scriptEngine = manager.getEngineByName("nashorn");
+		return scriptEngine == null ? null : scriptEngine.getFactory();
+	}
+
+	JsEngine borrow() throws InterruptedException {
+		return available.takeFirst();
+	}
+
+	void release(final JsEngine engine) {
+		if (engine != null)
+			available.addFirst(engine);
+	}
+
+	int getSize() {
+		return engines.size();
+	}
+
+	int getAvailable() {
+		return available.size();
+	}
+
+	ScriptCache.Statistics getScriptCacheStatistics() {
+		final List<ScriptCache.Statistics> statistics = new ArrayList<>(engines.size());
+		engines.forEach(engine -> {
+			if (engine.scriptCache != null)
+				statistics.add(engine.scriptCache.getStatistics());
+		});
+		return statistics.isEmpty() ? null : ScriptCache.Statistics.sum(statistics);
+	}
+
+	static class JsEngine {
+
+		final ScriptEngine scriptEngine;
+		private final ScriptCache<CompiledScript> scriptCache;
+
+		private JsEngine(final ScriptEngine scriptEngine, final int scriptCacheSize) {
+			this.scriptEngine = scriptEngine;
+			this.scriptCache = scriptEngine instanceof Compilable ?
+					new ScriptCache<>(scriptCacheSize, path -> compile((Compilable) scriptEngine, path)) :
+					null;
+		}
+
+		private static CompiledScript compile(final Compilable compilable, final Path scriptFilePath)
+				throws Exception {
+			try (final BufferedReader reader = Files.newBufferedReader(scriptFilePath, StandardCharsets.UTF_8)) {
+				return compilable.compile(reader);
+			}
+		}
+
+		Object eval(final Path scriptFilePath, final ScriptContext scriptContext) throws Exception {
+			if (scriptCache != null)
+				return scriptCache.get(scriptFilePath).eval(scriptContext);
+			try (final BufferedReader reader = Files.newBufferedReader(scriptFilePath, StandardCharsets.UTF_8)) {
+				return scriptEngine.eval(reader, scriptContext);
+			}
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import com.qwazr.utils.LoggerUtils;
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Engine;
+import org.graalvm.polyglot.HostAccess;
+import org.graalvm.polyglot.Source;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+
+/**
+ * Direct access to the GraalVM polyglot API, without the javax.script bridge.
+ * Every run gets its own Context, all the contexts share the same Engine and the same cached Sources,
+ * therefore the code is parsed and compiled once.
+ */
+class JsPolyglot implements Closeable {
+
+	private static final Logger LOGGER = LoggerUtils.getLogger(JsPolyglot.class);
+
+	static final String LANGUAGE_ID = "js";
+
+	private final Engine engine;
+	private final ScriptCache<Source> sourceCache;
+
+	JsPolyglot(final int scriptCacheSize) {
+		engine = Engine.newBuilder().allowExperimentalOptions(true).build();
+		LOGGER.info(() -> "Init polyglot engine: " + engine.getImplementationName() + " " + engine.getVersion());
+		sourceCache = new ScriptCache<>(scriptCacheSize, JsPolyglot::loadSource);
+	}
+
+	private static Source loadSource(final Path scriptFilePath) throws Exception {
+		return Source.newBuilder(LANGUAGE_ID, scriptFilePath.toFile())
+				.encoding(StandardCharsets.UTF_8)
+				.cached(true)
+				.build();
+	}
+
+	Context.Builder newContext() {
+		return Context.newBuilder(LANGUAGE_ID)
+				.engine(engine)
+				.allowExperimentalOptions(true)
+				.option("js.syntax-extensions", "true")
+				.option("js.load", "true")
+				.option("js.print", "true")
+				.option("js.global-arguments", "true")
+				.allowHostAccess(HostAccess.ALL)
+				.allowHostClassLookup(className -> true);
+	}
+
+	Source getSource(final Path scriptFilePath) throws Exception {
+		return sourceCache.get(scriptFilePath);
+	}
+
+	ScriptCache.Statistics getScriptCacheStatistics() {
+		return sourceCache.getStatistics();
+	}
+
+	@Override
+	public void close() {
+		sourceCache.clear();
+		// Cancel the contexts still executing (e.g. runs executed by the caller thread), instead of failing
+		engine.close(true);
+	}
+}
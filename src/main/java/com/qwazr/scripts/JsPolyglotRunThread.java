@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import com.qwazr.library.LibraryServiceInterface;
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Value;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Objects;
+
+class JsPolyglotRunThread extends RunThreadAbstract<Boolean> {
+
+	private final JsPolyglot polyglot;
+	private final LibraryServiceInterface libraryService;
+	private final Path scriptFilePath;
+	private final Map<String, ?> initialVariables;
+
+	JsPolyglotRunThread(final String myAddress, final JsPolyglot polyglot,
+			final LibraryServiceInterface libraryService, final Path scriptFilePath, final ScriptDefinition definition,
+			final OutputBuffer.Settings outputSettings, final Map<String, ?> initialVariables) {
+		super(myAddress, getScriptFilePath(scriptFilePath), definition, outputSettings, initialVariables);
+		this.polyglot = polyglot;
+		this.libraryService = libraryService;
+		this.scriptFilePath = scriptFilePath;
+		this.initialVariables = initialVariables;
+	}
+
+	@Override
+	String getScriptKey() {
+		return scriptFilePath.toAbsolutePath().normalize().toString();
+	}
+
+	private static String getScriptFilePath(final Path scriptFilePath) {
+		final Path fileName = Objects.requireNonNull(scriptFilePath, "The scriptFilePath is null").getFileName();
+		return fileName == null ? null : fileName.toString();
+	}
+
+	@Override
+	protected Boolean runner() throws Exception {
+		try (final Context context = polyglot.newContext()
+				.out(outputBuffer)
+				.err(errorBuffer)
+				.build()) {
+			// Closing the context from another thread cancels the execution
+			setCanceller(() -> context.close(true));
+			final Value bindings = context.getBindings(JsPolyglot.LANGUAGE_ID);
+			if (initialVariables != null)
+				initialVariables.forEach(bindings::putMember);
+			if (libraryService != null)
+				bindings.putMember("library", libraryService);
+			bindings.putMember("closeable", closeables);
+			final Value result = context.eval(polyglot.getSource(scriptFilePath));
+			if (result != null && result.isBoolean())
+				return result.asBoolean();
+			return true;
+		}
+	}
+
+}
@@ -15,17 +15,14 @@
  */
 package com.qwazr.scripts;
 
+import com.oracle.truffle.js.scriptengine.GraalJSScriptEngine;
 import com.qwazr.library.LibraryServiceInterface;
+import org.graalvm.polyglot.Context;
 
 import javax.script.Bindings;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
-import javax.script.ScriptException;
 import javax.script.SimpleScriptContext;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
@@ -33,16 +30,37 @@ import java.util.Objects;
 
 class JsRunThread extends RunThreadAbstract<Boolean> {
 
-	private final SimpleScriptContext scriptContext;
-	private final ScriptEngine scriptEngine;
+	private final JsEnginePool enginePool;
+	private final LibraryServiceInterface libraryService;
 	private final Path scriptFilePath;
+	private final Map<String, ?> initialVariables;
+	private final GlobalBindings globalBindings;
 
-	JsRunThread(final String myAddress, final ScriptEngine scriptEngine, final LibraryServiceInterface libraryService,
-			final Path scriptFilePath, final Map<String, ?> initialVariables) {
-		super(myAddress, getScriptFilePath(scriptFilePath), initialVariables);
-		this.scriptEngine = scriptEngine;
-		scriptContext = new SimpleScriptContext();
-		scriptContext.setBindings(new GlobalBindings(), ScriptContext.GLOBAL_SCOPE);
+	JsRunThread(final String myAddress, final JsEnginePool enginePool, final LibraryServiceInterface libraryService,
+			final Path scriptFilePath, final ScriptDefinition definition, final OutputBuffer.Settings outputSettings,
+			final Map<String, ?> initialVariables) {
+		super(myAddress, getScriptFilePath(scriptFilePath), definition, outputSettings, initialVariables);
+		this.enginePool = enginePool;
+		this.libraryService = libraryService;
+		this.scriptFilePath = scriptFilePath;
+		this.initialVariables = initialVariables;
+		this.globalBindings = new GlobalBindings();
+	}
+
+	@Override
+	String getScriptKey() {
+		return scriptFilePath.toAbsolutePath().normalize().toString();
+	}
+
+	private static String getScriptFilePath(final Path scriptFilePath) {
+		final Path fileName = Objects.requireNonNull(scriptFilePath, "The scriptFilePath is null").getFileName();
+		return fileName == null ? null : fileName.toString();
+	}
+
+	private ScriptContext getScriptContext(final ScriptEngine scriptEngine) {
+		final SimpleScriptContext scriptContext = new SimpleScriptContext();
+		scriptContext.setBindings(scriptEngine.createBindings(), ScriptContext.ENGINE_SCOPE);
+		scriptContext.setBindings(globalBindings, ScriptContext.GLOBAL_SCOPE);
 
 		if (initialVariables != null)
 			initialVariables.forEach(
@@ -52,26 +70,40 @@ class JsRunThread extends RunThreadAbstract<Boolean> {
 			scriptContext.setAttribute("library", libraryService, ScriptContext.ENGINE_SCOPE);
 		scriptContext.setAttribute("closeable", closeables, ScriptContext.ENGINE_SCOPE);
 
-		this.scriptFilePath = scriptFilePath;
 		scriptContext.setWriter(outputWriter);
 		scriptContext.setErrorWriter(errorWriter);
-		scriptEngine.setContext(scriptContext);
-	}
-
-	private static String getScriptFilePath(final Path scriptFilePath) {
-		final Path fileName = Objects.requireNonNull(scriptFilePath, "The scriptFilePath is null").getFileName();
-		return fileName == null ? null : fileName.toString();
+		return scriptContext;
 	}
 
 	@Override
-	protected Boolean runner() throws IOException, ScriptException {
-		try (final BufferedReader reader = Files.newBufferedReader(scriptFilePath, StandardCharsets.UTF_8)) {
-			Object result = scriptEngine.eval(reader, scriptContext);
+	protected Boolean runner() throws Exception {
+		final JsEnginePool.JsEngine engine = enginePool.borrow();
+		ScriptContext scriptContext = null;
+		try {
+			scriptContext = getScriptContext(engine.scriptEngine);
+			if (engine.scriptEngine instanceof GraalJSScriptEngine) {
+				// Closing the polyglot context of this run from another thread cancels the execution
+				final Context context = ((GraalJSScriptEngine) engine.scriptEngine).getPolyglotContext(scriptContext);
+				setCanceller(() -> context.close(true));
+			}
+			final Object result = engine.eval(scriptFilePath, scriptContext);
 			if (result == null)
 				return true;
 			if (result instanceof Boolean)
 				return (Boolean) result;
 			return true;
+		} finally {
+			try {
+				// With GraalJS, the engine bindings own the polyglot context of this run
+				if (scriptContext != null) {
+					final Bindings bindings = scriptContext.getBindings(ScriptContext.ENGINE_SCOPE);
+					if (bindings instanceof AutoCloseable)
+						((AutoCloseable) bindings).close();
+				}
+			} finally {
+				// The engine is given back even if the context cannot be closed (e.g. already closed by a cancel)
+				enginePool.release(engine);
+			}
 		}
 	}
 
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram with a bounded relative error (HDR histogram layout): the values below 64 have their own
+ * bucket, the larger values share 32 linear buckets per power of two (about 3% of error).
+ */
+class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = 2 * SUB_BUCKETS + (Long.SIZE - SUB_BUCKET_BITS - 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts;
+	private final LongAdder count;
+	private final LongAdder sum;
+	private final LongAccumulator max;
+
+	LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		count = new LongAdder();
+		sum = new LongAdder();
+		max = new LongAccumulator(Long::max, 0);
+	}
+
+	void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	static int index(final long value) {
+		if (value < 2 * SUB_BUCKETS)
+			return (int) value;
+		final int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * @return the highest value counted in the bucket
+	 */
+	static long highestValue(final int index) {
+		if (index < 2 * SUB_BUCKETS)
+			return index;
+		final int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+		final long subBucket = (index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+		final long highest = ((subBucket + 1) << shift) - 1;
+		return highest < 0 ? Long.MAX_VALUE : highest;
+	}
+
+	ScriptMetrics.Latency getSnapshot() {
+		final SortedMap<Integer, Long> buckets = new TreeMap<>();
+		for (int i = 0; i < BUCKETS; i++) {
+			final long bucketCount = counts.get(i);
+			if (bucketCount > 0)
+				buckets.put(i, bucketCount);
+		}
+		return new ScriptMetrics.Latency(count.sum(), sum.sum(), max.get(), buckets);
+	}
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+/**
+ * What a schedule does with a fire time it could not honor (the previous run is still running, the node was late or
+ * the queue was full).
+ */
+public enum MisfireEnum {
+
+	/**
+	 * The missed fire times are dropped, the schedule waits for its next fire time
+	 */
+	skip,
+
+	/**
+	 * The missed fire times are merged into one run, started as soon as possible
+	 */
+	fire_once
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import com.qwazr.utils.LoggerUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded buffer capturing the standard or the error output of a run.
+ * The last bytes are kept in a memory ring. When the ring is full, the output is spilled to a file, if a spill
+ * directory is given. Beyond the maximum size, the output is dropped and a truncation marker is appended.
+ */
+class OutputBuffer extends OutputStream {
+
+	private static final Logger LOGGER = LoggerUtils.getLogger(OutputBuffer.class);
+
+	private final int capacity;
+	private final long maxSize;
+	private final Path spillFile;
+
+	private byte[] ring;
+	private long written;
+	private long dropped;
+	private OutputStream spillStream;
+	private boolean spilled;
+	private boolean spillValid;
+	private boolean closed;
+
+	OutputBuffer(final Settings settings, final String spillFileName) {
+		this.capacity = settings.memorySize;
+		this.ring = new byte[0];
+		this.maxSize = settings.maxSize;
+		this.spillFile = settings.spillDirectory == null || spillFileName == null ?
+				null :
+				settings.spillDirectory.resolve(spillFileName);
+		this.written = 0;
+		this.dropped = 0;
+		this.spilled = false;
+		this.spillValid = false;
+		this.closed = false;
+	}
+
+	@Override
+	public void write(final int b) {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public synchronized void write(final byte[] bytes, final int offset, final int length) {
+		if (length <= 0)
+			return;
+		final int count = (int) Math.min(length, Math.max(0, maxSize - written));
+		dropped += length - count;
+		if (count == 0 || closed)
+			return;
+		if (!spilled && spillFile != null && written + count > capacity)
+			spill();
+		if (spillStream != null) {
+			try {
+				spillStream.write(bytes, offset, count);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, e, () -> "Cannot write the output spill file: " + spillFile);
+				spillValid = false;
+				closeSpillStream();
+			}
+		}
+		growRing(written + count);
+		writeRing(bytes, offset, count);
+		written += count;
+		notifyAll();
+	}
+
+	/**
+	 * The ring grows up to its capacity. As long as it is smaller than its capacity it does not wrap around.
+	 */
+	private void growRing(final long needed) {
+		if (ring.length >= capacity || needed <= ring.length)
+			return;
+		ring = Arrays.copyOf(ring, (int) Math.min(capacity, Math.max(needed, Math.max(256, ring.length * 2L))));
+	}
+
+	private void writeRing(final byte[] bytes, int offset, int length) {
+		long position = written;
+		if (length > ring.length) {
+			final int skipped = length - ring.length;
+			offset += skipped;
+			position += skipped;
+			length = ring.length;
+		}
+		final int start = (int) (position % ring.length);
+		final int first = Math.min(length, ring.length - start);
+		System.arraycopy(bytes, offset, ring, start, first);
+		if (first < length)
+			System.arraycopy(bytes, offset + first, ring, 0, length - first);
+	}
+
+	/**
+	 * Copy the content of the ring (which is still complete) into the spill file
+	 */
+	private void spill() {
+		spilled = true;
+		try {
+			Files.createDirectories(spillFile.getParent());
+			spillStream = new BufferedOutputStream(Files.newOutputStream(spillFile));
+			spillStream.write(ring, 0, (int) written);
+			spillValid = true;
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, e, () -> "Cannot create the output spill file: " + spillFile);
+			spillValid = false;
+			closeSpillStream();
+		}
+	}
+
+	private void closeSpillStream() {
+		if (spillStream == null)
+			return;
+		try {
+			spillStream.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, e, () -> "Cannot close the output spill file: " + spillFile);
+		}
+		spillStream = null;
+	}
+
+	/**
+	 * @return the number of bytes written (the dropped bytes are not counted)
+	 */
+	synchronized long size() {
+		return written;
+	}
+
+	/**
+	 * @return the number of bytes which have been dropped because the maximum size was reached
+	 */
+	synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * @return the number of bytes kept in memory
+	 */
+	synchronized long getMemorySize() {
+		return ring.length;
+	}
+
+	/**
+	 * Returns the bytes written from the given offset up to now. The bytes come from the spill file when they are
+	 * no longer in the ring. A truncation marker is inserted when bytes are missing (ring overwritten) and appended
+	 * when bytes have been dropped.
+	 *
+	 * @param offset the position of the first byte to read. A negative offset is relative to the end (tail).
+	 * @return a stream of the available bytes
+	 * @throws IOException if the spill file cannot be read
+	 */
+	synchronized InputStream getInputStream(final long offset) throws IOException {
+		final InputStream input = getRange(getPosition(offset), written);
+		if (dropped == 0)
+			return input == null ? InputStream.nullInputStream() : input;
+		final InputStream marker = getDroppedMarker();
+		return input == null ? marker : new SequenceInputStream(input, marker);
+	}
+
+	/**
+	 * Returns a stream which follows the output: when all the available bytes have been read, the stream waits for
+	 * new bytes. The stream ends when the run is finished.
+	 *
+	 * @param offset the position of the first byte to read. A negative offset is relative to the end (tail).
+	 * @return a stream following the output
+	 */
+	synchronized Follower follow(final long offset) {
+		return new Follower(getPosition(offset));
+	}
+
+	private long getPosition(final long offset) {
+		return offset < 0 ? Math.max(0, written + offset) : Math.min(offset, written);
+	}
+
+	private InputStream getDroppedMarker() {
+		return new ByteArrayInputStream(getMarker("\n[... " + dropped + " bytes truncated ...]\n"));
+	}
+
+	private InputStream getRange(long start, final long end) throws IOException {
+		if (start >= end)
+			return null;
+		final long ringStart = Math.max(0, written - ring.length);
+		if (start < ringStart && spillValid) {
+			if (spillStream != null)
+				spillStream.flush();
+			final FileChannel channel = FileChannel.open(spillFile, StandardOpenOption.READ);
+			channel.position(start);
+			return new BoundedInputStream(Channels.newInputStream(channel), end - start);
+		}
+		final ByteArrayOutputStream output = new ByteArrayOutputStream((int) Math.min(end - start, ring.length) + 64);
+		if (start < ringStart) {
+			output.write(getMarker("[... " + (ringStart - start) + " bytes truncated ...]\n"));
+			start = ringStart;
+		}
+		readRing(start, end, output);
+		return new ByteArrayInputStream(output.toByteArray());
+	}
+
+	private void readRing(final long offset, final long end, final ByteArrayOutputStream output) {
+		final int length = (int) (end - offset);
+		final int start = (int) (offset % ring.length);
+		final int first = Math.min(length, ring.length - start);
+		output.write(ring, start, first);
+		if (first < length)
+			output.write(ring, 0, length - first);
+	}
+
+	private static byte[] getMarker(final String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public synchronized String toString() {
+		try (final InputStream input = getInputStream(0)) {
+			return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Stop the capture. The spill file is kept and can still be read.
+	 */
+	synchronized void finish() {
+		closed = true;
+		closeSpillStream();
+		notifyAll();
+	}
+
+	/**
+	 * Stop the capture and delete the spill file.
+	 */
+	@Override
+	public synchronized void close() {
+		finish();
+		spillValid = false;
+		if (spillFile != null && spilled) {
+			try {
+				Files.deleteIfExists(spillFile);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, e, () -> "Cannot delete the output spill file: " + spillFile);
+			}
+		}
+	}
+
+	Writer getWriter() {
+		return new Utf8Writer();
+	}
+
+	/**
+	 * Encodes the characters in UTF-8 as soon as they are written, so the output is readable while the script is
+	 * running.
+	 */
+	private class Utf8Writer extends Writer {
+
+		private char highSurrogate;
+
+		@Override
+		public void write(final char[] chars, final int offset, final int length) {
+			if (length <= 0)
+				return;
+			final StringBuilder sb = new StringBuilder(length + 1);
+			if (highSurrogate != 0) {
+				sb.append(highSurrogate);
+				highSurrogate = 0;
+			}
+			sb.append(chars, offset, length);
+			final char last = sb.charAt(sb.length() - 1);
+			if (Character.isHighSurrogate(last)) {
+				highSurrogate = last;
+				sb.setLength(sb.length() - 1);
+			}
+			final byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+			OutputBuffer.this.write(bytes, 0, bytes.length);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * The stream returned in follow mode. Each read returns the bytes available at that time.
+	 */
+	class Follower extends InputStream {
+
+		private long position;
+		private InputStream current;
+		private boolean ended;
+
+		private Follower(final long position) {
+			this.position = position;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+			if (length == 0)
+				return 0;
+			for (; ; ) {
+				if (current != null) {
+					final int read = current.read(bytes, offset, length);
+					if (read >= 0)
+						return read;
+					current.close();
+					current = null;
+				}
+				if (ended)
+					return -1;
+				synchronized (OutputBuffer.this) {
+					try {
+						while (position >= written && !closed)
+							OutputBuffer.this.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while following the output");
+					}
+					if (position < written) {
+						current = getRange(position, written);
+						position = written;
+					} else {
+						ended = true;
+						if (dropped > 0)
+							current = getDroppedMarker();
+					}
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			ended = true;
+			if (current != null)
+				current.close();
+		}
+	}
+
+	private static class BoundedInputStream extends InputStream {
+
+		private final InputStream input;
+		private long remaining;
+
+		private BoundedInputStream(final InputStream input, final long remaining) {
+			this.input = input;
+			this.remaining = remaining;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0)
+				return -1;
+			final int b = input.read();
+			if (b >= 0)
+				remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			final int read = input.read(bytes, offset, (int) Math.min(length, remaining));
+			if (read > 0)
+				remaining -= read;
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			input.close();
+		}
+	}
+
+	static class Settings {
+
+		static final Settings DEFAULT = new Settings(ScriptsConfiguration.DEFAULT_OUTPUT_MEMORY_SIZE,
+				ScriptsConfiguration.DEFAULT_OUTPUT_MAX_SIZE, null);
+
+		private final int memorySize;
+		private final long maxSize;
+		private final Path spillDirectory;
+
+		Settings(final int memorySize, final long maxSize, final Path spillDirectory) {
+			this.memorySize = memorySize;
+			this.maxSize = maxSize;
+			this.spillDirectory = spillDirectory;
+		}
+	}
+}
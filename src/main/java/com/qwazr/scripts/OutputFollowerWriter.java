@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+/**
+ * Writes the output of a followed run. The response is flushed after each chunk, so the client receives the bytes
+ * as soon as the script writes them.
+ */
+@Provider
+@Produces(MediaType.TEXT_PLAIN)
+class OutputFollowerWriter implements MessageBodyWriter<OutputBuffer.Follower> {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	@Override
+	public boolean isWriteable(final Class<?> type, final Type genericType, final Annotation[] annotations,
+			final MediaType mediaType) {
+		return OutputBuffer.Follower.class.isAssignableFrom(type);
+	}
+
+	@Override
+	public void writeTo(final OutputBuffer.Follower follower, final Class<?> type, final Type genericType,
+			final Annotation[] annotations, final MediaType mediaType, final MultivaluedMap<String, Object> httpHeaders,
+			final OutputStream output) throws IOException, WebApplicationException {
+		try (follower) {
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = follower.read(buffer, 0, buffer.length)) != -1) {
+				output.write(buffer, 0, read);
+				output.flush();
+			}
+		}
+	}
+}
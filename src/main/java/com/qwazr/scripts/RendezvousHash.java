@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Rendezvous hashing: each node gets a score for the key, the highest score wins. Every node elects the same owner
+ * from the same set of nodes, and when a node leaves only its own keys move to another node.
+ */
+class RendezvousHash {
+
+	/**
+	 * @return the node which owns the key, or null if there is no node
+	 */
+	static String getOwner(final String key, final Collection<String> nodes) {
+		String owner = null;
+		long bestScore = Long.MIN_VALUE;
+		for (final String node : nodes) {
+			final long score = score(node, key);
+			if (owner == null || score > bestScore || (score == bestScore && node.compareTo(owner) < 0)) {
+				owner = node;
+				bestScore = score;
+			}
+		}
+		return owner;
+	}
+
+	/**
+	 * FNV-1a over the node and the key, followed by a 64 bits finalizer
+	 */
+	private static long score(final String node, final String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (final byte b : (node + '\n' + key).getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		return hash ^ (hash >>> 33);
+	}
+}
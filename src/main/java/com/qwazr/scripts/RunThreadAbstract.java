@@ -21,12 +21,15 @@ import com.qwazr.utils.LoggerUtils;
 import com.qwazr.utils.StringUtils;
 
 import java.io.Closeable;
-import java.io.StringWriter;
 import java.io.Writer;
 import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,26 +37,47 @@ public abstract class RunThreadAbstract<T> implements ScriptRunThread<T>, Runnab
 
 	private static final Logger logger = LoggerUtils.getLogger(RunThreadAbstract.class);
 
+	private static final long RUN_OVERHEAD = 1024;
+
 	private volatile ScriptRunStatus.ScriptState state;
+	private volatile long updatedTime;
+	private volatile Long queuedTime;
 	private volatile Long startTime;
 	private volatile Long endTime;
 	private volatile Long expirationTime;
+	private volatile long queuedNanos;
+	private volatile long startNanos;
+	private volatile long endNanos;
+	private volatile long cpuNanos = -1;
+	private volatile long allocatedBytes = -1;
 	private volatile Exception exception;
 	private volatile T result;
+	private volatile ScriptRunListener listener;
+	private final Object stateMonitor = new Object();
+	private long timeLimit;
+	private ScheduledExecutorService timeoutScheduler;
+	private Thread runnerThread;
+	private Runnable canceller;
+	private ScriptRunStatus.ScriptState stopState;
 
 	protected final String httpAddressKey;
 
 	private final String scriptName;
+	private final ScriptDefinition definition;
 	private final Map<String, Object> initialBinding;
 	protected final String uuid;
 
 	protected final IOUtils.CloseableList closeables;
+	final OutputBuffer outputBuffer;
+	final OutputBuffer errorBuffer;
 	protected final Writer outputWriter;
 	protected final Writer errorWriter;
 
-	protected RunThreadAbstract(String httpAddressKey, String scriptName, Map<String, ?> initialVariables) {
+	RunThreadAbstract(String httpAddressKey, String scriptName, ScriptDefinition definition,
+			OutputBuffer.Settings outputSettings, Map<String, ?> initialVariables) {
 		this.httpAddressKey = httpAddressKey;
 		this.scriptName = scriptName;
+		this.definition = definition == null ? ScriptDefinition.EMPTY : definition;
 		if (initialVariables != null) {
 			final Map<String, Object> initialBinding = new LinkedHashMap<>();
 			initialVariables.forEach((key, value) -> {
@@ -69,17 +93,30 @@ public abstract class RunThreadAbstract<T> implements ScriptRunThread<T>, Runnab
 			this.initialBinding = null;
 		uuid = HashUtils.newTimeBasedUUID().toString();
 		state = ScriptRunStatus.ScriptState.ready;
+		updatedTime = System.currentTimeMillis();
+		queuedTime = null;
 		startTime = null;
 		endTime = null;
 		expirationTime = null;
 		this.closeables = new IOUtils.CloseableList();
-		this.outputWriter = new StringWriter();
-		this.errorWriter = new StringWriter();
+		if (outputSettings == null)
+			outputSettings = OutputBuffer.Settings.DEFAULT;
+		this.outputBuffer = new OutputBuffer(outputSettings, uuid + ".out");
+		this.errorBuffer = new OutputBuffer(outputSettings, uuid + ".err");
+		this.outputWriter = outputBuffer.getWriter();
+		this.errorWriter = errorBuffer.getWriter();
+	}
+
+	protected RunThreadAbstract(String httpAddressKey, String scriptName, Map<String, ?> initialVariables) {
+		this(httpAddressKey, scriptName, null, null, initialVariables);
 	}
 
+	/**
+	 * Release the captured outputs (the spill files are deleted)
+	 */
 	@Override
 	final public void close() {
-		IOUtils.closeQuietly(outputWriter, errorWriter);
+		IOUtils.closeQuietly(outputBuffer, errorBuffer);
 	}
 
 	@Override
@@ -99,8 +136,10 @@ public abstract class RunThreadAbstract<T> implements ScriptRunThread<T>, Runnab
 
 	@Override
 	final public ScriptRunStatus<T> getStatus() {
-		return new ScriptRunStatus<>(httpAddressKey, scriptName, uuid, state, startTime, endTime, initialBinding,
-				exception, result);
+		final Long end = endTime;
+		return new ScriptRunStatus<>(httpAddressKey, scriptName, uuid, state, updatedTime, queuedTime, startTime, end,
+				initialBinding, exception, result, end == null || cpuNanos < 0 ? null : cpuNanos / 1000,
+				end == null || allocatedBytes < 0 ? null : allocatedBytes, end == null ? null : getOutputBytes());
 	}
 
 	@Override
@@ -111,31 +150,305 @@ public abstract class RunThreadAbstract<T> implements ScriptRunThread<T>, Runnab
 	}
 
 	final public String getOut() {
-		return outputWriter == null ? StringUtils.EMPTY : outputWriter.toString();
+		return outputBuffer.toString();
 	}
 
 	final public String getErr() {
-		return errorWriter == null ? StringUtils.EMPTY : errorWriter.toString();
+		return errorBuffer.toString();
+	}
+
+	final String getScriptName() {
+		return scriptName;
+	}
+
+	/**
+	 * The script name is not unique (e.g. two JS files with the same name in different directories).
+	 *
+	 * @return the identity of the script: the concurrency limit, the idempotency keys, the retention count and the
+	 * metrics are shared by the runs having the same script key
+	 */
+	String getScriptKey() {
+		return scriptName;
+	}
+
+	final ScriptDefinition getDefinition() {
+		return definition;
+	}
+
+	/**
+	 * @return the time spent in the queue (in nanoseconds), or -1 if the run was not queued
+	 */
+	final long getQueueWaitNanos() {
+		return queuedTime == null ? -1 : startNanos - queuedNanos;
+	}
+
+	/**
+	 * @return the execution time of a finished run (in nanoseconds)
+	 */
+	final long getRunNanos() {
+		return endNanos - startNanos;
+	}
+
+	/**
+	 * @return the CPU time used by a finished run (in nanoseconds), or -1 if it was not measured
+	 */
+	final long getCpuNanos() {
+		return cpuNanos;
+	}
+
+	/**
+	 * @return the number of bytes allocated by a finished run, or -1 if it was not measured
+	 */
+	final long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/**
+	 * @return the number of bytes produced on the standard and error outputs, including the dropped bytes
+	 */
+	final long getOutputBytes() {
+		return outputBuffer.size() + outputBuffer.getDropped() + errorBuffer.size() + errorBuffer.getDropped();
+	}
+
+	final ScriptRunStatus.ScriptState getState() {
+		return state;
+	}
+
+	final long getUpdatedTime() {
+		return updatedTime;
+	}
+
+	final Long getEndTime() {
+		return endTime;
+	}
+
+	final void setExpirationTime(final Long expirationTime) {
+		this.expirationTime = expirationTime;
+	}
+
+	/**
+	 * @return an estimation of the memory used by the retained run (mainly the captured outputs)
+	 */
+	long getRetainedSize() {
+		return RUN_OVERHEAD + outputBuffer.getMemorySize() + errorBuffer.getMemorySize();
+	}
+
+	/**
+	 * @param timeLimit the maximum execution time (in milliseconds), the run is stopped beyond
+	 * @param scheduler the scheduler which triggers the timeout
+	 */
+	final void setTimeLimit(final long timeLimit, final ScheduledExecutorService scheduler) {
+		this.timeLimit = timeLimit;
+		this.timeoutScheduler = scheduler;
+	}
+
+	final boolean isStarted() {
+		return startTime != null;
+	}
+
+	final void setListener(final ScriptRunListener listener) {
+		this.listener = listener;
+	}
+
+	final void queued() {
+		queuedTime = System.currentTimeMillis();
+		queuedNanos = System.nanoTime();
+		setState(ScriptRunStatus.ScriptState.queued);
+	}
+
+	private void setState(final ScriptRunStatus.ScriptState newState) {
+		synchronized (stateMonitor) {
+			state = newState;
+			updatedTime = System.currentTimeMillis();
+			stateMonitor.notifyAll();
+		}
+		final ScriptRunListener runListener = listener;
+		if (runListener != null)
+			runListener.onStateChange(this);
+	}
+
+	private static boolean isFinished(final ScriptRunStatus.ScriptState state) {
+		switch (state) {
+		case terminated:
+		case error:
+		case cancelled:
+		case timeout:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	final boolean isFinished() {
+		return isFinished(state);
+	}
+
+	/**
+	 * Wait until the state of the run is different from the given state, or until the run is finished if no state
+	 * is given.
+	 *
+	 * @param fromState the state known by the caller
+	 * @param timeout   the maximum time to wait in milliseconds
+	 * @return the current status
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	final ScriptRunStatus<T> waitStatus(final ScriptRunStatus.ScriptState fromState, final long timeout)
+			throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		synchronized (stateMonitor) {
+			while (fromState == null ? !isFinished(state) : state == fromState) {
+				final long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					break;
+				stateMonitor.wait(remaining);
+			}
+		}
+		return getStatus();
+	}
+
+	/**
+	 * Give the way to stop the execution of the runner (e.g. close the JS context), in addition to the interruption
+	 * of its thread. If the run is already stopped, the canceller is called immediately.
+	 */
+	protected final void setCanceller(final Runnable canceller) {
+		final boolean stopped;
+		synchronized (stateMonitor) {
+			this.canceller = canceller;
+			stopped = stopState != null;
+		}
+		if (stopped)
+			canceller.run();
+	}
+
+	/**
+	 * Stop the run: a run which has not started yet is finished immediately, a running run is interrupted.
+	 *
+	 * @param reason cancelled or timeout
+	 * @return false if the run was already finished or stopped
+	 */
+	final boolean stop(final ScriptRunStatus.ScriptState reason) {
+		final Runnable runCanceller;
+		final boolean started;
+		synchronized (stateMonitor) {
+			if (stopState != null || isFinished(state))
+				return false;
+			if (state == ScriptRunStatus.ScriptState.running && runnerThread == null)
+				return false; // The runner has just returned
+			stopState = reason;
+			// The interruption is done with the lock, so it cannot hit the next task of the thread
+			if (runnerThread != null)
+				runnerThread.interrupt();
+			runCanceller = canceller;
+			started = startTime != null;
+		}
+		if (!started) {
+			logger.info(() -> "Stop before start (" + reason + "): " + scriptName);
+			endBeforeStart(reason, getStopException(reason));
+		} else if (runCanceller != null) {
+			try {
+				runCanceller.run();
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, e, () -> "Cannot cancel " + scriptName + " - " + e.getMessage());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Finish with an error a run which could not be started (e.g. rejected by the executor).
+	 *
+	 * @param cause the reason of the failure
+	 * @return false if the run was already started, finished or stopped
+	 */
+	final boolean fail(final Exception cause) {
+		synchronized (stateMonitor) {
+			if (stopState != null || startTime != null || isFinished(state))
+				return false;
+			stopState = ScriptRunStatus.ScriptState.error;
+		}
+		logger.log(Level.SEVERE, cause, () -> "Cannot start " + scriptName + " - " + cause.getMessage());
+		endBeforeStart(ScriptRunStatus.ScriptState.error, cause);
+		return true;
+	}
+
+	private void endBeforeStart(final ScriptRunStatus.ScriptState endState, final Exception cause) {
+		exception = cause;
+		startNanos = endNanos = System.nanoTime();
+		endTime = System.currentTimeMillis();
+		outputBuffer.finish();
+		errorBuffer.finish();
+		setState(endState);
+		final ScriptRunListener runListener = listener;
+		if (runListener != null)
+			runListener.onEnd(this);
+	}
+
+	private Exception getStopException(final ScriptRunStatus.ScriptState reason) {
+		return new CancellationException(reason == ScriptRunStatus.ScriptState.timeout ?
+				"Time limit exceeded: " + timeLimit + " ms" :
+				"Cancelled");
 	}
 
 	protected abstract T runner() throws Exception;
 
 	@Override
 	final public void run() {
+		synchronized (stateMonitor) {
+			if (stopState != null)
+				return; // Stopped before its start
+			runnerThread = Thread.currentThread();
+			startTime = System.currentTimeMillis();
+		}
 		logger.info("Execute: " + scriptName);
-		state = ScriptRunStatus.ScriptState.running;
-		startTime = System.currentTimeMillis();
+		startNanos = System.nanoTime();
+		setState(ScriptRunStatus.ScriptState.running);
+		final ScheduledFuture<?> timeout = timeLimit > 0 && timeoutScheduler != null ?
+				timeoutScheduler.schedule(() -> stop(ScriptRunStatus.ScriptState.timeout), timeLimit,
+						TimeUnit.MILLISECONDS) :
+				null;
+		final long startCpu = ThreadResources.getCpuTime();
+		final long startAllocated = ThreadResources.getAllocatedBytes();
+		ScriptRunStatus.ScriptState endState = ScriptRunStatus.ScriptState.error;
 		try {
 			result = runner();
-			state = ScriptRunStatus.ScriptState.terminated;
+			endState = ScriptRunStatus.ScriptState.terminated;
 		} catch (Exception e) {
-			state = ScriptRunStatus.ScriptState.error;
 			exception = e;
-			logger.log(Level.SEVERE, e, () -> "Error on " + scriptName + " - " + e.getMessage());
+			if (stopState == null)
+				logger.log(Level.SEVERE, e, () -> "Error on " + scriptName + " - " + e.getMessage());
 		} finally {
-			endTime = System.currentTimeMillis();
-			expirationTime = endTime + 2 * 60 * 1000;
+			if (timeout != null)
+				timeout.cancel(false);
+			final ScriptRunStatus.ScriptState stoppedState;
+			synchronized (stateMonitor) {
+				runnerThread = null;
+				stoppedState = stopState;
+			}
+			// The interruption of a stop is cleared, the thread may be reused. Any other interruption is kept for
+			// the caller (e.g. a run executed by the caller thread).
+			final boolean interrupted = Thread.interrupted() && stoppedState == null;
+			if (stoppedState != null) {
+				endState = stoppedState;
+				exception = getStopException(stoppedState);
+				logger.info(() -> "Stopped (" + stoppedState + "): " + scriptName);
+			}
 			closeables.close();
+			outputBuffer.finish();
+			errorBuffer.finish();
+			final long endCpu = ThreadResources.getCpuTime();
+			final long endAllocated = ThreadResources.getAllocatedBytes();
+			if (startCpu >= 0 && endCpu >= 0)
+				cpuNanos = endCpu - startCpu;
+			if (startAllocated >= 0 && endAllocated >= 0)
+				allocatedBytes = endAllocated - startAllocated;
+			endTime = System.currentTimeMillis();
+			endNanos = System.nanoTime();
+			setState(endState);
+			final ScriptRunListener runListener = listener;
+			if (runListener != null)
+				runListener.onEnd(this);
+			if (interrupted)
+				Thread.currentThread().interrupt();
 		}
 	}
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded LRU cache of compiled scripts.
+ * An entry is only reused while the last-modified time and the size of the file are unchanged.
+ */
+public class ScriptCache<T> {
+
+	private final int maxSize;
+	private final Compiler<T> compiler;
+	private final LinkedHashMap<Path, CachedScript<T>> entries;
+
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder evictions;
+
+	ScriptCache(final int maxSize, final Compiler<T> compiler) {
+		this.maxSize = maxSize;
+		this.compiler = compiler;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<Path, CachedScript<T>> eldest) {
+				if (size() <= ScriptCache.this.maxSize)
+					return false;
+				evictions.increment();
+				return true;
+			}
+		};
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.evictions = new LongAdder();
+	}
+
+	T get(final Path scriptFilePath) throws Exception {
+		final Path path = scriptFilePath.toAbsolutePath().normalize();
+		final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		final long lastModified = attributes.lastModifiedTime().toMillis();
+		final long size = attributes.size();
+		if (maxSize > 0) {
+			final CachedScript<T> entry;
+			synchronized (entries) {
+				entry = entries.get(path);
+			}
+			if (entry != null && entry.lastModified == lastModified && entry.size == size) {
+				hits.increment();
+				return entry.compiled;
+			}
+		}
+		misses.increment();
+		final T compiled = compiler.compile(path);
+		if (maxSize > 0) {
+			synchronized (entries) {
+				entries.put(path, new CachedScript<>(lastModified, size, compiled));
+			}
+		}
+		return compiled;
+	}
+
+	void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	Statistics getStatistics() {
+		final int size;
+		synchronized (entries) {
+			size = entries.size();
+		}
+		return new Statistics(maxSize, size, hits.sum(), misses.sum(), evictions.sum());
+	}
+
+	@FunctionalInterface
+	interface Compiler<T> {
+
+		T compile(Path scriptFilePath) throws Exception;
+	}
+
+	private static class CachedScript<T> {
+
+		private final long lastModified;
+		private final long size;
+		private final T compiled;
+
+		private CachedScript(final long lastModified, final long size, final T compiled) {
+			this.lastModified = lastModified;
+			this.size = size;
+			this.compiled = compiled;
+		}
+	}
+
+	public static class Statistics {
+
+		@JsonProperty("max_size")
+		public final int maxSize;
+		public final int size;
+		public final long hits;
+		public final long misses;
+		public final long evictions;
+
+		@JsonCreator
+		Statistics(@JsonProperty("max_size") final int maxSize, @JsonProperty("size") final int size,
+				@JsonProperty("hits") final long hits, @JsonProperty("misses") final long misses,
+				@JsonProperty("evictions") final long evictions) {
+			this.maxSize = maxSize;
+			this.size = size;
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+		}
+
+		static Statistics sum(final Iterable<Statistics> statistics) {
+			int maxSize = 0;
+			int size = 0;
+			long hits = 0;
+			long misses = 0;
+			long evictions = 0;
+			for (final Statistics stats : statistics) {
+				maxSize += stats.maxSize;
+				size += stats.size;
+				hits += stats.hits;
+				misses += stats.misses;
+				evictions += stats.evictions;
+			}
+			return new Statistics(maxSize, size, hits, misses, evictions);
+		}
+
+		@JsonIgnore
+		public double getHitRatio() {
+			final long total = hits + misses;
+			return total == 0 ? 0 : (double) hits / total;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import com.qwazr.library.LibraryServiceInterface;
+import com.qwazr.server.ServerException;
+import com.qwazr.utils.ClassLoaderUtils;
+import com.qwazr.utils.LoggerUtils;
+
+import javax.ws.rs.core.Response;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A resolved Java script class: everything needed to create a run is computed once per class name.
+ * The instances are created by a generated factory (no reflection), and the injection is skipped when no field of
+ * the class is annotated. The instances are reused if the class allows it (see {@link ScriptOptions}).
+ */
+class ScriptClass {
+
+	private static final Logger LOGGER = LoggerUtils.getLogger(ScriptClass.class);
+
+	final String className;
+	final Class<?> scriptClass;
+	final ScriptDefinition definition;
+	final boolean injectable;
+	private final Supplier<Object> factory;
+	private final boolean threadSafe;
+	private final ArrayBlockingQueue<Object> pool;
+	private volatile Object shared;
+
+	private ScriptClass(final String className, final Class<?> scriptClass) {
+		this.className = className;
+		this.scriptClass = scriptClass;
+		this.definition = ScriptDefinition.of(scriptClass);
+		this.injectable = hasAnnotatedField(scriptClass);
+		this.factory = getFactory(className, scriptClass);
+		final ScriptOptions options = scriptClass.getAnnotation(ScriptOptions.class);
+		this.threadSafe = options != null && options.threadSafe();
+		this.pool = options != null && !threadSafe && options.poolSize() > 0 ?
+				new ArrayBlockingQueue<>(options.poolSize()) :
+				null;
+	}
+
+	static ScriptClass of(final String className) {
+		try {
+			return new ScriptClass(className, ClassLoaderUtils.findClass(className));
+		} catch (ClassNotFoundException e) {
+			throw new ServerException(Response.Status.NOT_FOUND, "Class not found: " + className);
+		}
+	}
+
+	Object newInstance() {
+		return factory.get();
+	}
+
+	private Object newInstance(final LibraryServiceInterface libraryService) {
+		final Object script = factory.get();
+		if (libraryService != null && injectable)
+			libraryService.inject(script);
+		return script;
+	}
+
+	/**
+	 * @return the shared instance, an idle instance of the pool, or a new instance
+	 */
+	Object acquire(final LibraryServiceInterface libraryService) {
+		if (threadSafe) {
+			Object script = shared;
+			if (script == null) {
+				synchronized (this) {
+					script = shared;
+					if (script == null)
+						shared = script = newInstance(libraryService);
+				}
+			}
+			return script;
+		}
+		if (pool != null) {
+			final Object script = pool.poll();
+			if (script != null)
+				return script;
+		}
+		return newInstance(libraryService);
+	}
+
+	/**
+	 * Give back an instance after a successful run. It is kept if the pool is not full.
+	 */
+	void release(final Object script) {
+		if (pool != null)
+			pool.offer(script);
+	}
+
+	private static boolean hasAnnotatedField(Class<?> scriptClass) {
+		while (scriptClass != null && scriptClass != Object.class) {
+			for (final Field field : scriptClass.getDeclaredFields())
+				if (field.getDeclaredAnnotations().length > 0)
+					return true;
+			scriptClass = scriptClass.getSuperclass();
+		}
+		return false;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Supplier<Object> getFactory(final String className, final Class<?> scriptClass) {
+		final MethodHandles.Lookup lookup = MethodHandles.lookup();
+		final MethodHandle constructor;
+		try {
+			constructor = lookup.findConstructor(scriptClass, MethodType.methodType(void.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new ServerException(Response.Status.NOT_FOUND, "Class not found: " + className);
+		}
+		// The generated lambda is linked by the class loader of this class, which must see the script class
+		if (isVisible(scriptClass)) {
+			try {
+				return (Supplier<Object>) LambdaMetafactory.metafactory(lookup, "get",
+						MethodType.methodType(Supplier.class), MethodType.methodType(Object.class), constructor,
+						MethodType.methodType(scriptClass)).getTarget().invokeExact();
+			} catch (Throwable e) {
+				LOGGER.log(Level.FINE, e, () -> "Cannot generate the factory of " + className);
+			}
+		}
+		final MethodHandle genericConstructor = constructor.asType(MethodType.methodType(Object.class));
+		return () -> {
+			try {
+				return genericConstructor.invokeExact();
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new UndeclaredThrowableException(e);
+			}
+		};
+	}
+
+	private static boolean isVisible(final Class<?> scriptClass) {
+		try {
+			return Class.forName(scriptClass.getName(), false, ScriptClass.class.getClassLoader()) == scriptClass;
+		} catch (ClassNotFoundException | LinkageError e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.qwazr.utils.ObjectMappers;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Objects;
+
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonAutoDetect(getterVisibility = JsonAutoDetect.Visibility.NONE,
+		setterVisibility = JsonAutoDetect.Visibility.NONE,
+		creatorVisibility = JsonAutoDetect.Visibility.NONE,
+		isGetterVisibility = JsonAutoDetect.Visibility.NONE,
+		fieldVisibility = JsonAutoDetect.Visibility.PUBLIC_ONLY)
+public class ScriptDefinition {
+
+	public static final ScriptDefinition EMPTY = new ScriptDefinition(null, null, null, null);
+
+	public static final String EXTENSION = ".json";
+
+	@JsonProperty("retention_time")
+	public final Long retentionTime;
+
+	@JsonProperty("retention_count")
+	public final Integer retentionCount;
+
+	/**
+	 * How many runs of the script a node accepts at the same time (queued or running)
+	 */
+	@JsonProperty("max_concurrency")
+	public final Integer maxConcurrency;
+
+	/**
+	 * The maximum execution time of a run in milliseconds
+	 */
+	@JsonProperty("time_limit")
+	public final Long timeLimit;
+
+	@JsonCreator
+	public ScriptDefinition(@JsonProperty("retention_time") final Long retentionTime,
+			@JsonProperty("retention_count") final Integer retentionCount,
+			@JsonProperty("max_concurrency") final Integer maxConcurrency,
+			@JsonProperty("time_limit") final Long timeLimit) {
+		this.retentionTime = retentionTime;
+		this.retentionCount = retentionCount;
+		this.maxConcurrency = maxConcurrency;
+		this.timeLimit = timeLimit;
+	}
+
+	public ScriptDefinition(final Long retentionTime, final Integer retentionCount, final Integer maxConcurrency) {
+		this(retentionTime, retentionCount, maxConcurrency, null);
+	}
+
+	public ScriptDefinition(final Long retentionTime, final Integer retentionCount) {
+		this(retentionTime, retentionCount, null);
+	}
+
+	public Long getRetentionTime() {
+		return retentionTime;
+	}
+
+	public Integer getRetentionCount() {
+		return retentionCount;
+	}
+
+	public Integer getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	public Long getTimeLimit() {
+		return timeLimit;
+	}
+
+	static ScriptDefinition of(final Class<?> scriptClass) {
+		final ScriptOptions options = scriptClass.getAnnotation(ScriptOptions.class);
+		if (options == null)
+			return EMPTY;
+		return new ScriptDefinition(options.retentionTime() < 0 ? null : options.retentionTime(),
+				options.retentionCount() < 0 ? null : options.retentionCount(),
+				options.maxConcurrency() < 0 ? null : options.maxConcurrency(),
+				options.timeLimit() < 0 ? null : options.timeLimit());
+	}
+
+	static ScriptDefinition load(final Path definitionFilePath) throws IOException {
+		return ObjectMappers.JSON.readValue(definitionFilePath.toFile(), ScriptDefinition.class);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(retentionTime, retentionCount, maxConcurrency, timeLimit);
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+		if (o == this)
+			return true;
+		if (!(o instanceof ScriptDefinition))
+			return false;
+		final ScriptDefinition d = (ScriptDefinition) o;
+		return Objects.equals(retentionTime, d.retentionTime) && Objects.equals(retentionCount, d.retentionCount) &&
+				Objects.equals(maxConcurrency, d.maxConcurrency) && Objects.equals(timeLimit, d.timeLimit);
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import com.qwazr.server.ServerException;
+import com.qwazr.utils.LoggerUtils;
+
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Dispatches the asynchronous runs to the underlying executor.
+ * At most maxConcurrency runs are executing at the same time, the others wait in a bounded queue ordered by
+ * priority, then by submission order. A submission is rejected (429) when the queue is full.
+ */
+class ScriptExecutor {
+
+	private static final Logger LOGGER = LoggerUtils.getLogger(ScriptExecutor.class);
+
+	private final Executor executor;
+	private final int maxConcurrency;
+	private final int maxQueueSize;
+
+	private final PriorityQueue<Task> queue;
+	private int running;
+	private long sequence;
+	private boolean shutdown;
+
+	ScriptExecutor(final Executor executor, final int maxConcurrency, final int maxQueueSize) {
+		this.executor = executor;
+		this.maxConcurrency = maxConcurrency;
+		this.maxQueueSize = maxQueueSize;
+		this.queue = new PriorityQueue<>();
+		this.running = 0;
+		this.sequence = 0;
+	}
+
+	/**
+	 * Virtual threads are only available since Java 21, therefore the factory method is found by reflection.
+	 *
+	 * @return an executor which starts a new virtual thread for each task
+	 * @throws UnsupportedOperationException if the running JVM does not support virtual threads
+	 */
+	static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException(
+					"Virtual threads are not supported by this JVM: " + System.getProperty("java.version"), e);
+		}
+	}
+
+	void execute(final RunThreadAbstract<?> runThread, final PriorityEnum priority) {
+		executeAll(Collections.singletonList(runThread), priority);
+	}
+
+	/**
+	 * Enqueue all the runs, or none of them if the queue cannot take them all.
+	 */
+	void executeAll(final Collection<RunThreadAbstract<?>> runThreads, final PriorityEnum priority) {
+		synchronized (queue) {
+			if (shutdown)
+				throw new ServerException(Response.Status.SERVICE_UNAVAILABLE, "The scripts service is closed");
+			if (queue.size() + runThreads.size() > maxQueueSize)
+				throw new ServerException(Response.Status.TOO_MANY_REQUESTS,
+						"Too many scripts waiting for execution: " + queue.size());
+			for (final RunThreadAbstract<?> runThread : runThreads) {
+				runThread.queued();
+				queue.add(new Task(runThread, priority == null ? PriorityEnum.normal : priority, sequence++));
+			}
+		}
+		dispatch();
+	}
+
+	private void dispatch() {
+		for (; ; ) {
+			final Task task;
+			synchronized (queue) {
+				if (shutdown || running >= maxConcurrency)
+					return;
+				task = queue.poll();
+				if (task == null)
+					return;
+				running++;
+			}
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException e) {
+				// Nothing guarantees a later dispatch: the run is failed rather than left in the queue
+				LOGGER.log(Level.WARNING, e, () -> "Script execution rejected: " + task.runThread.getUUID());
+				synchronized (queue) {
+					running--;
+					queue.notifyAll();
+				}
+				task.runThread.fail(e);
+			}
+		}
+	}
+
+	/**
+	 * Stop the dispatching: the new submissions are rejected and the queue is emptied.
+	 *
+	 * @return the runs which were waiting in the queue
+	 */
+	List<RunThreadAbstract<?>> shutdown() {
+		synchronized (queue) {
+			shutdown = true;
+			final List<RunThreadAbstract<?>> runThreads = new ArrayList<>(queue.size());
+			queue.forEach(task -> runThreads.add(task.runThread));
+			queue.clear();
+			return runThreads;
+		}
+	}
+
+	/**
+	 * Wait until no run is executing.
+	 *
+	 * @return false if runs are still executing after the timeout
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (queue) {
+			while (running > 0) {
+				final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (remaining <= 0)
+					return false;
+				queue.wait(remaining);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Removes a run which is still waiting in the queue.
+	 *
+	 * @return true if the run was found in the queue
+	 */
+	boolean remove(final RunThreadAbstract<?> runThread) {
+		synchronized (queue) {
+			return queue.removeIf(task -> task.runThread == runThread);
+		}
+	}
+
+	int getRunning() {
+		synchronized (queue) {
+			return running;
+		}
+	}
+
+	int getQueued() {
+		synchronized (queue) {
+			return queue.size();
+		}
+	}
+
+	int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	private class Task implements Runnable, Comparable<Task> {
+
+		private final RunThreadAbstract<?> runThread;
+		private final PriorityEnum priority;
+		private final long sequence;
+
+		private Task(final RunThreadAbstract<?> runThread, final PriorityEnum priority, final long sequence) {
+			this.runThread = runThread;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public void run() {
+			try {
+				runThread.run();
+			} finally {
+				synchronized (queue) {
+					running--;
+					queue.notifyAll();
+				}
+				dispatch();
+			}
+		}
+
+		@Override
+		public int compareTo(final Task o) {
+			final int c = Integer.compare(priority.ordinal(), o.priority.ordinal());
+			return c != 0 ? c : Long.compare(sequence, o.sequence);
+		}
+	}
+}
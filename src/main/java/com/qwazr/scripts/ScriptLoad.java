@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Objects;
+
+/**
+ * The load of a node: the number of running and queued runs.
+ */
+@JsonAutoDetect(getterVisibility = JsonAutoDetect.Visibility.NONE,
+		setterVisibility = JsonAutoDetect.Visibility.NONE,
+		creatorVisibility = JsonAutoDetect.Visibility.NONE,
+		isGetterVisibility = JsonAutoDetect.Visibility.NONE,
+		fieldVisibility = JsonAutoDetect.Visibility.PUBLIC_ONLY)
+public class ScriptLoad {
+
+	public final int running;
+
+	public final int queued;
+
+	@JsonProperty("max_concurrency")
+	public final int maxConcurrency;
+
+	@JsonCreator
+	ScriptLoad(@JsonProperty("running") final int running, @JsonProperty("queued") final int queued,
+			@JsonProperty("max_concurrency") final int maxConcurrency) {
+		this.running = running;
+		this.queued = queued;
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	public int getRunning() {
+		return running;
+	}
+
+	public int getQueued() {
+		return queued;
+	}
+
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	/**
+	 * @return the number of running and queued runs per execution slot
+	 */
+	public double getLoadFactor() {
+		return (double) (running + queued) / Math.max(1, maxConcurrency);
+	}
+
+	@Override
+	public boolean equals(final Object other) {
+		if (!(other instanceof ScriptLoad))
+			return false;
+		if (other == this)
+			return true;
+		final ScriptLoad o = (ScriptLoad) other;
+		return running == o.running && queued == o.queued && maxConcurrency == o.maxConcurrency;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(running, queued, maxConcurrency);
+	}
+}
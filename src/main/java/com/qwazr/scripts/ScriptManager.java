@@ -16,38 +16,51 @@
 package com.qwazr.scripts;
 
 import com.qwazr.cluster.ClusterManager;
+import com.qwazr.cluster.ClusterServiceInterface;
 import com.qwazr.library.LibraryServiceInterface;
+import com.qwazr.server.RemoteService;
 import com.qwazr.server.ServerException;
 import com.qwazr.utils.LoggerUtils;
 import com.qwazr.utils.StringUtils;
-import com.qwazr.utils.concurrent.ReadWriteLock;
 
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
 import javax.ws.rs.core.Response.Status;
+import java.io.Closeable;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class ScriptManager {
+public class ScriptManager implements Closeable {
 
 	private static final Logger LOGGER = LoggerUtils.getLogger(ScriptManager.class);
 
-	private final ReadWriteLock runsMapLock = ReadWriteLock.stamped();
-	private final HashMap<String, RunThreadAbstract<?>> runsMap;
+	private final ScriptRunRegistry runRegistry;
+	private final ScriptMetricsRecorder metricsRecorder;
+	private final ScriptCache<ScriptDefinition> definitionCache;
+	private final ConcurrentHashMap<String, ScriptClass> scriptClasses;
+	private final OutputBuffer.Settings outputSettings;
 
-	private final ExecutorService executorService;
-	private final ScriptEngine scriptEngine;
+	private final ExecutorService virtualThreadExecutor;
+	private final ScriptExecutor scriptExecutor;
+	private final JsEnginePool jsEnginePool;
+	private final JsPolyglot jsPolyglot;
 
+	private final ExecutorService executorService;
+	private final ClusterServiceInterface clusterService;
 	private final String myAddress;
 	private final LibraryServiceInterface libraryService;
 
@@ -55,33 +68,102 @@ public class ScriptManager {
 
 	private final Function<String, Path> pathResolver;
 
-	public ScriptManager(final ExecutorService executorService, final String myAddress,
-			final LibraryServiceInterface libraryService, final Path rootDirectory) {
+	private final ScriptScheduler scheduler;
+
+	private final ConcurrentHashMap<String, ScriptSingleClient> nodeClients;
+
+	private final long timeLimit;
+	private final ScheduledExecutorService timeoutScheduler;
+
+	private ScriptManager(final ExecutorService executorService, final ClusterServiceInterface clusterService,
+			final String myAddress, final LibraryServiceInterface libraryService, final Path rootDirectory,
+			final ScriptsConfiguration configuration) {
 		this.executorService = executorService;
+		this.clusterService = clusterService;
+		this.virtualThreadExecutor = configuration.executorMode == ScriptsConfiguration.ExecutorMode.virtual ?
+				initVirtualThreadExecutor() :
+				null;
+		this.scriptExecutor =
+				new ScriptExecutor(virtualThreadExecutor != null ? virtualThreadExecutor : executorService,
+						configuration.maxConcurrency, configuration.maxQueueSize);
 		this.libraryService = libraryService;
 		this.myAddress = myAddress;
-		this.scriptEngine = Objects.requireNonNull(initScriptEngine(), "No javascript engine found");
-		LOGGER.info("Init scriptEngine: " + scriptEngine);
+		switch (configuration.jsRunner) {
+		case polyglot:
+			this.jsEnginePool = null;
+			this.jsPolyglot = new JsPolyglot(configuration.scriptCacheSize);
+			break;
+		default:
+		case scriptengine:
+			this.jsEnginePool = new JsEnginePool(configuration.jsEnginePoolSize, configuration.scriptCacheSize);
+			this.jsPolyglot = null;
+			break;
+		}
 		this.pathResolver = rootDirectory == null ? Paths::get : rootDirectory::resolve;
-		this.runsMap = new HashMap<>();
+		this.outputSettings = new OutputBuffer.Settings(configuration.outputMemorySize, configuration.outputMaxSize,
+				configuration.outputDirectory != null ?
+						configuration.outputDirectory :
+						rootDirectory == null ?
+								null :
+								rootDirectory.resolve(ScriptsConfiguration.DEFAULT_OUTPUT_DIRECTORY_NAME));
+		this.metricsRecorder = new ScriptMetricsRecorder();
+		this.runRegistry = new ScriptRunRegistry(configuration, metricsRecorder);
+		this.definitionCache = new ScriptCache<>(configuration.scriptCacheSize, ScriptDefinition::load);
+		this.scriptClasses = new ConcurrentHashMap<>();
 		this.service = new ScriptServiceImpl(this);
+		this.nodeClients = new ConcurrentHashMap<>();
+		final Path schedulesFile = configuration.schedulesFile != null ?
+				configuration.schedulesFile :
+				rootDirectory == null ? null : rootDirectory.resolve(ScriptsConfiguration.DEFAULT_SCHEDULES_FILE_NAME);
+		this.timeLimit = configuration.timeLimit;
+		final ScheduledThreadPoolExecutor timeoutExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+			final Thread thread = new Thread(runnable, "qwazr-scripts-timeout");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// The timeouts of the finished runs are cancelled, they should not retain the runs until their deadline
+		timeoutExecutor.setRemoveOnCancelPolicy(true);
+		this.timeoutScheduler = timeoutExecutor;
+		// Created last: the scheduler thread may submit runs as soon as it is started
+		this.scheduler = schedulesFile == null ? null : new ScriptScheduler(this, schedulesFile);
 	}
 
-	private static ScriptEngine initScriptEngine() {
-		final ScriptEngineManager manager = new ScriptEngineManager(Thread.currentThread().getContextClassLoader());
-		ScriptEngine scriptEngine = manager.getEngineByName("graal.js");
-		if (scriptEngine != null)
-			return scriptEngine;
-		return manager.getEngineByName("nashorn");
+	public ScriptManager(final ExecutorService executorService, final String myAddress,
+			final LibraryServiceInterface libraryService, final Path rootDirectory,
+			final ScriptsConfiguration configuration) {
+		this(executorService, null, myAddress, libraryService, rootDirectory, configuration);
+	}
+
+	private static ExecutorService initVirtualThreadExecutor() {
+		try {
+			final ExecutorService executor = ScriptExecutor.newVirtualThreadPerTaskExecutor();
+			LOGGER.info("Scripts are executed by virtual threads");
+			return executor;
+		} catch (UnsupportedOperationException e) {
+			LOGGER.log(Level.WARNING, e, () -> e.getMessage() + " - Fallback to the platform threads");
+			return null;
+		}
+	}
+
+	public ScriptManager(final ExecutorService executorService, final String myAddress,
+			final LibraryServiceInterface libraryService, final Path rootDirectory) {
+		this(executorService, myAddress, libraryService, rootDirectory, ScriptsConfiguration.DEFAULT);
 	}
 
 	public ScriptManager(final ExecutorService executorService, final Path rootDirectory) {
 		this(executorService, (String) null, null, rootDirectory);
 	}
 
+	public ScriptManager(final ExecutorService executorService, final ClusterManager clusterManager,
+			final LibraryServiceInterface libraryService, final Path rootDirectory,
+			final ScriptsConfiguration configuration) {
+		this(executorService, clusterManager.getService(), clusterManager.getService().getStatus().me,
+				libraryService, rootDirectory, configuration);
+	}
+
 	public ScriptManager(final ExecutorService executorService, final ClusterManager clusterManager,
 			final LibraryServiceInterface libraryService, final Path rootDirectory) {
-		this(executorService, clusterManager.getService().getStatus().me, libraryService, rootDirectory);
+		this(executorService, clusterManager, libraryService, rootDirectory, ScriptsConfiguration.DEFAULT);
 	}
 
 	public ScriptServiceInterface getService() {
@@ -100,62 +182,278 @@ public class ScriptManager {
 		return scriptFilePath;
 	}
 
+	private ScriptDefinition getScriptDefinition(final Path scriptFilePath) {
+		final Path definitionFilePath =
+				scriptFilePath.resolveSibling(scriptFilePath.getFileName() + ScriptDefinition.EXTENSION);
+		if (!Files.exists(definitionFilePath))
+			return ScriptDefinition.EMPTY;
+		try {
+			return definitionCache.get(definitionFilePath);
+		} catch (Exception e) {
+			throw new ServerException(Status.NOT_ACCEPTABLE,
+					"Cannot load the script definition: " + definitionFilePath.toAbsolutePath() + " - " +
+							e.getMessage());
+		}
+	}
+
+	/**
+	 * The script is resolved once, then the returned factory creates the runs.
+	 */
+	private Function<Map<String, ?>, RunThreadAbstract<?>> getScriptRunThreadFactory(final String scriptPath) {
+		if (scriptPath.endsWith(".js")) {
+			final Path scriptFilePath = getScriptFilePath(scriptPath);
+			final ScriptDefinition definition = getScriptDefinition(scriptFilePath);
+			return jsPolyglot != null ?
+					objects -> new JsPolyglotRunThread(myAddress, jsPolyglot, libraryService, scriptFilePath,
+							definition, outputSettings, objects) :
+					objects -> new JsRunThread(myAddress, jsEnginePool, libraryService, scriptFilePath, definition,
+							outputSettings, objects);
+		} else {
+			final ScriptClass scriptClass = scriptClasses.computeIfAbsent(scriptPath, ScriptClass::of);
+			return objects -> new JavaRunThread(myAddress, libraryService, scriptClass, outputSettings, objects);
+		}
+	}
+
 	private RunThreadAbstract<?> getNewScriptRunThread(final String scriptPath, final Map<String, ?> objects) {
-		final RunThreadAbstract<?> scriptRunThread;
-		if (scriptPath.endsWith(".js"))
-			scriptRunThread =
-					new JsRunThread(myAddress, scriptEngine, libraryService, getScriptFilePath(scriptPath), objects);
-		else
-			scriptRunThread = new JavaRunThread(myAddress, libraryService, scriptPath, objects);
-		addScriptRunThread(scriptRunThread);
-		return scriptRunThread;
+		return getScriptRunThreadFactory(scriptPath).apply(objects);
 	}
 
 	RunThreadAbstract<?> runSync(String scriptPath, Map<String, ?> objects) {
 		LOGGER.info(() -> "Run sync: " + scriptPath);
 		final RunThreadAbstract<?> scriptRunThread = getNewScriptRunThread(scriptPath, objects);
+		addScriptRunThread(scriptRunThread, null);
+		applyTimeLimit(scriptRunThread, null);
 		scriptRunThread.run();
-		expireScriptRunThread();
 		return scriptRunThread;
 	}
 
+	/**
+	 * Run the script on this node, unless a group or a multi-node rule is given: then the active nodes of the group
+	 * are found by the cluster manager, and the rule is applied by a multi client.
+	 */
+	List<ScriptRunStatus<?>> runScript(final String scriptPath, final String group, final TargetRuleEnum rule,
+			final PriorityEnum priority, final String idempotencyKey, final Long timeLimit,
+			final Map<String, String> variables) {
+		if (clusterService != null && (group != null || (rule != null && rule != TargetRuleEnum.one))) {
+			final SortedSet<String> nodes =
+					clusterService.getActiveNodesByService(ScriptServiceInterface.SERVICE_NAME, group);
+			if (nodes == null || nodes.isEmpty())
+				throw new ServerException(Status.NOT_FOUND,
+						group == null ? "No active node" : "No active node in the group: " + group);
+			if (nodes.size() > 1 || !nodes.contains(myAddress))
+				return getClusterClient(nodes).runScriptVariables(scriptPath, null, rule, priority, idempotencyKey,
+						timeLimit, variables);
+		}
+		return Collections.singletonList(runAsync(scriptPath, variables, priority, idempotencyKey, timeLimit));
+	}
+
+	/**
+	 * The client of each node is created once, and kept until the manager is closed.
+	 */
+	private ScriptMultiClient getClusterClient(final Collection<String> nodes) {
+		final ScriptSingleClient[] clients = new ScriptSingleClient[nodes.size()];
+		int i = 0;
+		for (final String node : nodes)
+			clients[i++] = nodeClients.computeIfAbsent(node,
+					address -> new ScriptSingleClient(RemoteService.of(address).build()));
+		return new ScriptMultiClient(executorService, clients);
+	}
+
 	ScriptRunStatus<?> runAsync(final String scriptPath, final Map<String, ?> objects) {
+		return runAsync(scriptPath, objects, PriorityEnum.normal);
+	}
+
+	ScriptRunStatus<?> runAsync(final String scriptPath, final Map<String, ?> objects, final PriorityEnum priority) {
+		return runAsync(scriptPath, objects, priority, null, null);
+	}
+
+	/**
+	 * @param idempotencyKey if a run of the script submitted with this key is still retained, its status is returned
+	 *                       and no new run is started
+	 * @param timeLimit      the maximum execution time (in milliseconds) requested for this run, or null
+	 */
+	ScriptRunStatus<?> runAsync(final String scriptPath, final Map<String, ?> objects, final PriorityEnum priority,
+			final String idempotencyKey, final Long timeLimit) {
 		LOGGER.info(() -> "Run async: " + scriptPath);
+		return submit(scriptPath, objects, priority, idempotencyKey, timeLimit).getStatus();
+	}
+
+	/**
+	 * Submit the run to the executor, then wait until the run is finished or until the timeout.
+	 *
+	 * @return the final status, or the current status if the timeout has been reached
+	 */
+	ScriptRunStatus<?> runAndWait(final String scriptPath, final Map<String, ?> objects, final PriorityEnum priority,
+			final long timeout, final boolean withStdOut) throws InterruptedException {
+		LOGGER.info(() -> "Run and wait: " + scriptPath);
+		final RunThreadAbstract<?> scriptRunThread = submit(scriptPath, objects, priority, null, null);
+		final ScriptRunStatus<?> status = scriptRunThread.waitStatus(null, timeout);
+		return withStdOut ? status.withStdOut(scriptRunThread.getOut()) : status;
+	}
+
+	/**
+	 * Submit one run per variables map. The script is resolved once for the whole batch, and the batch is either
+	 * fully accepted or rejected.
+	 */
+	List<ScriptRunStatus<?>> runBatch(final String scriptPath, final List<? extends Map<String, ?>> variablesList,
+			final PriorityEnum priority) {
+		if (variablesList == null || variablesList.isEmpty())
+			return Collections.emptyList();
+		LOGGER.info(() -> "Run batch: " + scriptPath + " (" + variablesList.size() + ")");
+		final Function<Map<String, ?>, RunThreadAbstract<?>> factory = getScriptRunThreadFactory(scriptPath);
+		final List<RunThreadAbstract<?>> scriptRunThreads = new ArrayList<>(variablesList.size());
+		for (final Map<String, ?> variables : variablesList) {
+			final RunThreadAbstract<?> scriptRunThread = factory.apply(variables);
+			try {
+				addScriptRunThread(scriptRunThread, null);
+			} catch (ServerException e) {
+				scriptRunThreads.forEach(runRegistry::remove);
+				throw e;
+			}
+			applyTimeLimit(scriptRunThread, null);
+			scriptRunThreads.add(scriptRunThread);
+		}
+		try {
+			scriptExecutor.executeAll(scriptRunThreads, priority);
+		} catch (ServerException e) {
+			scriptRunThreads.forEach(runRegistry::remove);
+			throw e;
+		}
+		final List<ScriptRunStatus<?>> statuses = new ArrayList<>(scriptRunThreads.size());
+		scriptRunThreads.forEach(scriptRunThread -> statuses.add(scriptRunThread.getStatus()));
+		return statuses;
+	}
+
+	private RunThreadAbstract<?> submit(final String scriptPath, final Map<String, ?> objects,
+			final PriorityEnum priority, final String idempotencyKey, final Long timeLimit) {
 		final RunThreadAbstract<?> scriptRunThread = getNewScriptRunThread(scriptPath, objects);
-		executorService.execute(scriptRunThread);
-		expireScriptRunThread();
-		return scriptRunThread.getStatus();
-	}
-
-	private void addScriptRunThread(final RunThreadAbstract<?> scriptRunThread) {
-		if (scriptRunThread == null)
-			return;
-		runsMapLock.write(() -> runsMap.put(scriptRunThread.getUUID(), scriptRunThread));
-	}
-
-	private void expireScriptRunThread() {
-		runsMapLock.write(() -> {
-			final List<String> uuidsToDelete = new ArrayList<>();
-			final long currentTime = System.currentTimeMillis();
-			runsMap.forEach((s, scriptRunThread) -> {
-				if (scriptRunThread.hasExpired(currentTime))
-					uuidsToDelete.add(scriptRunThread.getUUID());
-			});
-			uuidsToDelete.forEach(runsMap::remove);
-			LOGGER.info(() -> "Expire " + uuidsToDelete.size() + " jobs");
-		});
+		final RunThreadAbstract<?> registered = addScriptRunThread(scriptRunThread, idempotencyKey);
+		if (registered != scriptRunThread) {
+			LOGGER.info(() -> "Duplicate submission of " + scriptPath + ": " + registered.getUUID());
+			return registered;
+		}
+		applyTimeLimit(scriptRunThread, timeLimit);
+		try {
+			scriptExecutor.execute(scriptRunThread, priority);
+		} catch (ServerException e) {
+			runRegistry.remove(scriptRunThread);
+			throw e;
+		}
+		runRegistry.admitted(scriptRunThread);
+		return scriptRunThread;
 	}
 
-	Map<String, ScriptRunStatus<?>> getRunsStatus() {
-		return runsMapLock.read(() -> {
-			final LinkedHashMap<String, ScriptRunStatus<?>> runStatusMap = new LinkedHashMap<>();
-			runsMap.forEach((key, runThreadAbstract) -> runStatusMap.put(key, runThreadAbstract.getStatus()));
-			return runStatusMap;
-		});
+	/**
+	 * @return the registered run: the given one, or the existing run submitted with the same idempotency key
+	 */
+	private RunThreadAbstract<?> addScriptRunThread(final RunThreadAbstract<?> scriptRunThread,
+			final String idempotencyKey) {
+		final RunThreadAbstract<?> registered;
+		try {
+			registered = runRegistry.add(scriptRunThread, idempotencyKey);
+		} catch (ServerException e) {
+			scriptRunThread.close();
+			throw e;
+		}
+		if (registered != scriptRunThread)
+			scriptRunThread.close();
+		return registered;
+	}
+
+	/**
+	 * The time limit of the script definition (or of the server) applies. A lower limit can be requested per run.
+	 */
+	private void applyTimeLimit(final RunThreadAbstract<?> scriptRunThread, final Long requestedTimeLimit) {
+		final Long definitionTimeLimit = scriptRunThread.getDefinition().timeLimit;
+		long limit = definitionTimeLimit != null ? definitionTimeLimit : timeLimit;
+		if (requestedTimeLimit != null && requestedTimeLimit > 0 && (limit <= 0 || requestedTimeLimit < limit))
+			limit = requestedTimeLimit;
+		if (limit > 0)
+			scriptRunThread.setTimeLimit(limit, timeoutScheduler);
+	}
+
+	/**
+	 * Stop the run: a queued run is removed from the queue, a running one is interrupted.
+	 *
+	 * @return the status of the run
+	 */
+	ScriptRunStatus<?> cancelRun(final RunThreadAbstract<?> runThread) {
+		if (runThread.stop(ScriptRunStatus.ScriptState.cancelled)) {
+			LOGGER.info(() -> "Run cancelled: " + runThread.getUUID());
+			scriptExecutor.remove(runThread);
+		}
+		return runThread.getStatus();
+	}
+
+	Map<String, ScriptRunStatus<?>> getRunsStatus(final Long since, final Set<ScriptRunStatus.ScriptState> states,
+			final String name) {
+		return runRegistry.getStatus(since, states, name);
 	}
 
 	RunThreadAbstract<?> getRunThread(final String uuid) {
-		return runsMapLock.read(() -> runsMap.get(uuid));
+		return runRegistry.get(uuid);
+	}
+
+	/**
+	 * @return true if this node fires the schedule: always without cluster, otherwise if this node is the owner of
+	 * the schedule among the active nodes of the group
+	 */
+	boolean isScheduleOwner(final String scheduleName, final String group) {
+		if (clusterService == null)
+			return true;
+		final SortedSet<String> nodes =
+				clusterService.getActiveNodesByService(ScriptServiceInterface.SERVICE_NAME, group);
+		return nodes != null && myAddress != null && myAddress.equals(RendezvousHash.getOwner(scheduleName, nodes));
+	}
+
+	ScriptLoad getLoad() {
+		return new ScriptLoad(scriptExecutor.getRunning(), scriptExecutor.getQueued(),
+				scriptExecutor.getMaxConcurrency());
+	}
+
+	ScriptMetrics getMetrics() {
+		return new ScriptMetrics(scriptExecutor.getRunning(), scriptExecutor.getQueued(), runRegistry.size(),
+				runRegistry.getRetainedMemory(), getScriptCacheStatistics(), definitionCache.getStatistics(),
+				metricsRecorder.getScripts());
+	}
+
+	ScriptRunEvents getRunEvents(final long since, final long timeout) throws InterruptedException {
+		return runRegistry.getEvents(since, timeout);
+	}
+
+	/**
+	 * The execution is stopped before the resources are released: the queued runs are cancelled, the running runs
+	 * are given some time to finish, then they are cancelled too.
+	 */
+	@Override
+	public void close() {
+		if (scheduler != null)
+			scheduler.close();
+		scriptExecutor.shutdown().forEach(runThread -> runThread.stop(ScriptRunStatus.ScriptState.cancelled));
+		try {
+			if (!scriptExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+				runRegistry.stopAll(ScriptRunStatus.ScriptState.cancelled);
+				if (!scriptExecutor.awaitTermination(10, TimeUnit.SECONDS))
+					LOGGER.warning(() -> "Runs are still executing: " + scriptExecutor.getRunning());
+			}
+		} catch (InterruptedException e) {
+			runRegistry.stopAll(ScriptRunStatus.ScriptState.cancelled);
+			Thread.currentThread().interrupt();
+		}
+		if (virtualThreadExecutor != null)
+			virtualThreadExecutor.shutdownNow();
+		runRegistry.close();
+		nodeClients.values().forEach(ScriptSingleClient::close);
+		nodeClients.clear();
+		timeoutScheduler.shutdownNow();
+		if (jsPolyglot != null)
+			jsPolyglot.close();
+	}
+
+	public ScriptCache.Statistics getScriptCacheStatistics() {
+		return jsPolyglot != null ?
+				jsPolyglot.getScriptCacheStatistics() :
+				jsEnginePool.getScriptCacheStatistics();
 	}
 
 }
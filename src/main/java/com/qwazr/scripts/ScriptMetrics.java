@@ -0,0 +1,410 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * The metrics of a node, or of a cluster when merged by the multi client.
+ * The latencies are expressed in microseconds.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonAutoDetect(getterVisibility = JsonAutoDetect.Visibility.NONE,
+		setterVisibility = JsonAutoDetect.Visibility.NONE,
+		creatorVisibility = JsonAutoDetect.Visibility.NONE,
+		isGetterVisibility = JsonAutoDetect.Visibility.NONE,
+		fieldVisibility = JsonAutoDetect.Visibility.PUBLIC_ONLY)
+public class ScriptMetrics {
+
+	public final int running;
+
+	public final int queued;
+
+	@JsonProperty("registry_size")
+	public final int registrySize;
+
+	@JsonProperty("retained_memory")
+	public final long retainedMemory;
+
+	@JsonProperty("script_cache")
+	public final ScriptCache.Statistics scriptCache;
+
+	@JsonProperty("definition_cache")
+	public final ScriptCache.Statistics definitionCache;
+
+	public final Map<String, Script> scripts;
+
+	@JsonCreator
+	ScriptMetrics(@JsonProperty("running") final int running, @JsonProperty("queued") final int queued,
+			@JsonProperty("registry_size") final int registrySize,
+			@JsonProperty("retained_memory") final long retainedMemory,
+			@JsonProperty("script_cache") final ScriptCache.Statistics scriptCache,
+			@JsonProperty("definition_cache") final ScriptCache.Statistics definitionCache,
+			@JsonProperty("scripts") final Map<String, Script> scripts) {
+		this.running = running;
+		this.queued = queued;
+		this.registrySize = registrySize;
+		this.retainedMemory = retainedMemory;
+		this.scriptCache = scriptCache;
+		this.definitionCache = definitionCache;
+		this.scripts = scripts == null ? Collections.emptyMap() : scripts;
+	}
+
+	/**
+	 * Sum the metrics of several nodes. The latency percentiles are computed again from the merged buckets.
+	 */
+	static ScriptMetrics merge(final Collection<ScriptMetrics> metricsList) {
+		int running = 0;
+		int queued = 0;
+		int registrySize = 0;
+		long retainedMemory = 0;
+		final List<ScriptCache.Statistics> scriptCaches = new ArrayList<>();
+		final List<ScriptCache.Statistics> definitionCaches = new ArrayList<>();
+		final Map<String, Script> scripts = new TreeMap<>();
+		for (final ScriptMetrics metrics : metricsList) {
+			running += metrics.running;
+			queued += metrics.queued;
+			registrySize += metrics.registrySize;
+			retainedMemory += metrics.retainedMemory;
+			if (metrics.scriptCache != null)
+				scriptCaches.add(metrics.scriptCache);
+			if (metrics.definitionCache != null)
+				definitionCaches.add(metrics.definitionCache);
+			metrics.scripts.forEach((name, script) -> scripts.merge(name, script, Script::merge));
+		}
+		return new ScriptMetrics(running, queued, registrySize, retainedMemory,
+				ScriptCache.Statistics.sum(scriptCaches), ScriptCache.Statistics.sum(definitionCaches), scripts);
+	}
+
+	/**
+	 * @return the metrics in the Prometheus text exposition format
+	 */
+	public String toPrometheus() {
+		final StringBuilder sb = new StringBuilder();
+		gauge(sb, "qwazr_scripts_running", "Runs being executed", running);
+		gauge(sb, "qwazr_scripts_queued", "Runs waiting for execution", queued);
+		gauge(sb, "qwazr_scripts_registry_size", "Runs known by the registry", registrySize);
+		gauge(sb, "qwazr_scripts_retained_memory_bytes", "Memory retained by the finished runs", retainedMemory);
+
+		header(sb, "qwazr_scripts_cache_hits_total", "Script cache hits", "counter");
+		cacheSample(sb, "qwazr_scripts_cache_hits_total", scriptCache, definitionCache, s -> s.hits);
+		header(sb, "qwazr_scripts_cache_misses_total", "Script cache misses", "counter");
+		cacheSample(sb, "qwazr_scripts_cache_misses_total", scriptCache, definitionCache, s -> s.misses);
+		header(sb, "qwazr_scripts_cache_evictions_total", "Script cache evictions", "counter");
+		cacheSample(sb, "qwazr_scripts_cache_evictions_total", scriptCache, definitionCache, s -> s.evictions);
+		header(sb, "qwazr_scripts_cache_hit_ratio", "Script cache hit ratio", "gauge");
+		cacheSample(sb, "qwazr_scripts_cache_hit_ratio", scriptCache, definitionCache,
+				ScriptCache.Statistics::getHitRatio);
+
+		header(sb, "qwazr_scripts_runs_total", "Finished runs by outcome", "counter");
+		scripts.forEach((name, script) -> {
+			sample(sb, "qwazr_scripts_runs_total", labels("script", name, "outcome", "success"), script.success);
+			sample(sb, "qwazr_scripts_runs_total", labels("script", name, "outcome", "error"), script.error);
+			sample(sb, "qwazr_scripts_runs_total", labels("script", name, "outcome", "cancelled"), script.cancelled);
+			sample(sb, "qwazr_scripts_runs_total", labels("script", name, "outcome", "timeout"), script.timeout);
+		});
+		header(sb, "qwazr_scripts_expired_total", "Finished runs evicted by the retention policy", "counter");
+		scripts.forEach((name, script) -> sample(sb, "qwazr_scripts_expired_total", labels("script", name),
+				script.expired));
+		summary(sb, "qwazr_scripts_queue_wait_seconds", "Time spent in the queue", s -> s.queueWait);
+		summary(sb, "qwazr_scripts_run_duration_seconds", "Execution time", s -> s.runDuration);
+		summary(sb, "qwazr_scripts_cpu_seconds", "CPU time of the runs", s -> s.cpuTime);
+		header(sb, "qwazr_scripts_allocated_bytes_total", "Bytes allocated by the runs", "counter");
+		scripts.forEach((name, script) -> sample(sb, "qwazr_scripts_allocated_bytes_total", labels("script", name),
+				script.allocatedBytes));
+		header(sb, "qwazr_scripts_output_bytes_total", "Bytes written on the outputs by the runs", "counter");
+		scripts.forEach((name, script) -> sample(sb, "qwazr_scripts_output_bytes_total", labels("script", name),
+				script.outputBytes));
+		return sb.toString();
+	}
+
+	/**
+	 * @param cost  the cost used to sort the scripts
+	 * @param limit the maximum number of scripts
+	 * @return the most expensive scripts, the most expensive first
+	 */
+	public Map<String, Script> getTop(final CostEnum cost, final int limit) {
+		final ToLongFunction<Script> costFunction = Script.getCost(cost == null ? CostEnum.cpu : cost);
+		final LinkedHashMap<String, Script> top = new LinkedHashMap<>();
+		scripts.entrySet()
+				.stream()
+				.sorted(Comparator.comparingLong(
+						(Map.Entry<String, Script> entry) -> costFunction.applyAsLong(entry.getValue())).reversed())
+				.limit(Math.max(0, limit))
+				.forEach(entry -> top.put(entry.getKey(), entry.getValue()));
+		return top;
+	}
+
+	private static void header(final StringBuilder sb, final String name, final String help, final String type) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(final StringBuilder sb, final String name, final String labels, final Number value) {
+		sb.append(name).append(labels).append(' ').append(value).append('\n');
+	}
+
+	private static void gauge(final StringBuilder sb, final String name, final String help, final Number value) {
+		header(sb, name, help, "gauge");
+		sample(sb, name, "", value);
+	}
+
+	private static void cacheSample(final StringBuilder sb, final String name, final ScriptCache.Statistics scripts,
+			final ScriptCache.Statistics definitions,
+			final Function<ScriptCache.Statistics, Number> value) {
+		if (scripts != null)
+			sample(sb, name, labels("cache", "scripts"), value.apply(scripts));
+		if (definitions != null)
+			sample(sb, name, labels("cache", "definitions"), value.apply(definitions));
+	}
+
+	private void summary(final StringBuilder sb, final String name, final String help,
+			final Function<Script, Latency> latency) {
+		header(sb, name, help, "summary");
+		scripts.forEach((script, metrics) -> {
+			final Latency l = latency.apply(metrics);
+			if (l == null)
+				return;
+			sample(sb, name, labels("script", script, "quantile", "0.5"), l.p50 / 1e6);
+			sample(sb, name, labels("script", script, "quantile", "0.9"), l.p90 / 1e6);
+			sample(sb, name, labels("script", script, "quantile", "0.99"), l.p99 / 1e6);
+			sample(sb, name, labels("script", script, "quantile", "0.999"), l.p999 / 1e6);
+			sample(sb, name + "_sum", labels("script", script), l.sum / 1e6);
+			sample(sb, name + "_count", labels("script", script), l.count);
+		});
+	}
+
+	private static String labels(final String... namesAndValues) {
+		final StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < namesAndValues.length; i += 2) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(namesAndValues[i]).append("=\"");
+			final String value = namesAndValues[i + 1];
+			for (int j = 0; j < value.length(); j++) {
+				final char c = value.charAt(j);
+				if (c == '\\' || c == '"')
+					sb.append('\\').append(c);
+				else if (c == '\n')
+					sb.append("\\n");
+				else
+					sb.append(c);
+			}
+			sb.append('"');
+		}
+		return sb.append('}').toString();
+	}
+
+	@JsonAutoDetect(getterVisibility = JsonAutoDetect.Visibility.NONE,
+			setterVisibility = JsonAutoDetect.Visibility.NONE,
+			creatorVisibility = JsonAutoDetect.Visibility.NONE,
+			isGetterVisibility = JsonAutoDetect.Visibility.NONE,
+			fieldVisibility = JsonAutoDetect.Visibility.PUBLIC_ONLY)
+	public static class Script {
+
+		public final long success;
+
+		public final long error;
+
+		public final long cancelled;
+
+		public final long timeout;
+
+		public final long expired;
+
+		@JsonProperty("queue_wait")
+		public final Latency queueWait;
+
+		@JsonProperty("run_duration")
+		public final Latency runDuration;
+
+		@JsonProperty("cpu_time")
+		public final Latency cpuTime;
+
+		@JsonProperty("allocated_bytes")
+		public final long allocatedBytes;
+
+		@JsonProperty("output_bytes")
+		public final long outputBytes;
+
+		@JsonCreator
+		Script(@JsonProperty("success") final long success, @JsonProperty("error") final long error,
+				@JsonProperty("cancelled") final long cancelled, @JsonProperty("timeout") final long timeout,
+				@JsonProperty("expired") final long expired, @JsonProperty("queue_wait") final Latency queueWait,
+				@JsonProperty("run_duration") final Latency runDuration,
+				@JsonProperty("cpu_time") final Latency cpuTime,
+				@JsonProperty("allocated_bytes") final long allocatedBytes,
+				@JsonProperty("output_bytes") final long outputBytes) {
+			this.success = success;
+			this.error = error;
+			this.cancelled = cancelled;
+			this.timeout = timeout;
+			this.expired = expired;
+			this.queueWait = queueWait;
+			this.runDuration = runDuration;
+			this.cpuTime = cpuTime;
+			this.allocatedBytes = allocatedBytes;
+			this.outputBytes = outputBytes;
+		}
+
+		static Script merge(final Script s1, final Script s2) {
+			return new Script(s1.success + s2.success, s1.error + s2.error, s1.cancelled + s2.cancelled,
+					s1.timeout + s2.timeout, s1.expired + s2.expired,
+					Latency.merge(s1.queueWait, s2.queueWait), Latency.merge(s1.runDuration, s2.runDuration),
+					Latency.merge(s1.cpuTime, s2.cpuTime), s1.allocatedBytes + s2.allocatedBytes,
+					s1.outputBytes + s2.outputBytes);
+		}
+
+		static ToLongFunction<Script> getCost(final CostEnum cost) {
+			switch (cost) {
+			case allocation:
+				return script -> script.allocatedBytes;
+			case output:
+				return script -> script.outputBytes;
+			case duration:
+				return script -> script.runDuration == null ? 0 : script.runDuration.sum;
+			case cpu:
+			default:
+				return script -> script.cpuTime == null ? 0 : script.cpuTime.sum;
+			}
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+			if (!(other instanceof Script))
+				return false;
+			if (other == this)
+				return true;
+			final Script o = (Script) other;
+			return success == o.success && error == o.error && cancelled == o.cancelled && timeout == o.timeout &&
+					expired == o.expired &&
+					Objects.equals(queueWait, o.queueWait) && Objects.equals(runDuration, o.runDuration) &&
+					Objects.equals(cpuTime, o.cpuTime) && allocatedBytes == o.allocatedBytes &&
+					outputBytes == o.outputBytes;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(success, error, expired);
+		}
+	}
+
+	/**
+	 * A latency distribution. The non empty buckets of the histogram are kept, so the distributions of several
+	 * nodes can be merged without losing the percentiles.
+	 */
+	@JsonIgnoreProperties(value = { "p50", "p90", "p99", "p999" }, allowGetters = true)
+	@JsonAutoDetect(getterVisibility = JsonAutoDetect.Visibility.NONE,
+			setterVisibility = JsonAutoDetect.Visibility.NONE,
+			creatorVisibility = JsonAutoDetect.Visibility.NONE,
+			isGetterVisibility = JsonAutoDetect.Visibility.NONE,
+			fieldVisibility = JsonAutoDetect.Visibility.PUBLIC_ONLY)
+	public static class Latency {
+
+		public final long count;
+
+		public final long sum;
+
+		public final long max;
+
+		public final long p50;
+
+		public final long p90;
+
+		public final long p99;
+
+		public final long p999;
+
+		public final SortedMap<Integer, Long> buckets;
+
+		@JsonCreator
+		Latency(@JsonProperty("count") final long count, @JsonProperty("sum") final long sum,
+				@JsonProperty("max") final long max,
+				@JsonProperty("buckets") final SortedMap<Integer, Long> buckets) {
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+			this.buckets = buckets == null ? Collections.emptySortedMap() : buckets;
+			this.p50 = getPercentile(0.5);
+			this.p90 = getPercentile(0.9);
+			this.p99 = getPercentile(0.99);
+			this.p999 = getPercentile(0.999);
+		}
+
+		/**
+		 * @param quantile between 0 and 1
+		 * @return the highest value of the bucket which contains the percentile (never more than the max)
+		 */
+		public long getPercentile(final double quantile) {
+			if (count == 0)
+				return 0;
+			final long rank = Math.max(1, (long) Math.ceil(quantile * count));
+			long seen = 0;
+			for (final Map.Entry<Integer, Long> bucket : buckets.entrySet()) {
+				seen += bucket.getValue();
+				if (seen >= rank)
+					return Math.min(max, LatencyHistogram.highestValue(bucket.getKey()));
+			}
+			return max;
+		}
+
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		static Latency merge(final Latency l1, final Latency l2) {
+			if (l1 == null)
+				return l2;
+			if (l2 == null)
+				return l1;
+			final SortedMap<Integer, Long> buckets = new TreeMap<>(l1.buckets);
+			l2.buckets.forEach((index, count) -> buckets.merge(index, count, Long::sum));
+			return new Latency(l1.count + l2.count, l1.sum + l2.sum, Math.max(l1.max, l2.max), buckets);
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+			if (!(other instanceof Latency))
+				return false;
+			if (other == this)
+				return true;
+			final Latency o = (Latency) other;
+			return count == o.count && sum == o.sum && max == o.max && Objects.equals(buckets, o.buckets);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(count, sum, max);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the metrics of the finished runs, per script.
+ */
+class ScriptMetricsRecorder {
+
+	private final ConcurrentHashMap<String, ScriptRecorder> scripts;
+
+	ScriptMetricsRecorder() {
+		scripts = new ConcurrentHashMap<>();
+	}
+
+	private ScriptRecorder getScript(final RunThreadAbstract<?> runThread) {
+		return scripts.computeIfAbsent(runThread.getScriptKey(), key -> new ScriptRecorder());
+	}
+
+	void onEnd(final RunThreadAbstract<?> runThread) {
+		final ScriptRecorder script = getScript(runThread);
+		switch (runThread.getState()) {
+		case terminated:
+			script.success.increment();
+			break;
+		case cancelled:
+			script.cancelled.increment();
+			break;
+		case timeout:
+			script.timeout.increment();
+			break;
+		default:
+			script.error.increment();
+			break;
+		}
+		// A run cancelled in the queue has no execution
+		if (!runThread.isStarted())
+			return;
+		final long queueWaitNanos = runThread.getQueueWaitNanos();
+		if (queueWaitNanos >= 0)
+			script.queueWait.record(TimeUnit.NANOSECONDS.toMicros(queueWaitNanos));
+		script.runDuration.record(TimeUnit.NANOSECONDS.toMicros(runThread.getRunNanos()));
+		final long cpuNanos = runThread.getCpuNanos();
+		if (cpuNanos >= 0)
+			script.cpuTime.record(TimeUnit.NANOSECONDS.toMicros(cpuNanos));
+		final long allocatedBytes = runThread.getAllocatedBytes();
+		if (allocatedBytes >= 0)
+			script.allocatedBytes.add(allocatedBytes);
+		script.outputBytes.add(runThread.getOutputBytes());
+	}
+
+	void onExpired(final RunThreadAbstract<?> runThread) {
+		getScript(runThread).expired.increment();
+	}
+
+	Map<String, ScriptMetrics.Script> getScripts() {
+		final Map<String, ScriptMetrics.Script> snapshot = new TreeMap<>();
+		scripts.forEach((name, script) -> snapshot.put(name,
+				new ScriptMetrics.Script(script.success.sum(), script.error.sum(), script.cancelled.sum(),
+						script.timeout.sum(), script.expired.sum(),
+						script.queueWait.getSnapshot(), script.runDuration.getSnapshot(), script.cpuTime.getSnapshot(),
+						script.allocatedBytes.sum(), script.outputBytes.sum())));
+		return snapshot;
+	}
+
+	private static class ScriptRecorder {
+
+		private final LongAdder success = new LongAdder();
+		private final LongAdder error = new LongAdder();
+		private final LongAdder cancelled = new LongAdder();
+		private final LongAdder timeout = new LongAdder();
+		private final LongAdder expired = new LongAdder();
+		private final LatencyHistogram queueWait = new LatencyHistogram();
+		private final LatencyHistogram runDuration = new LatencyHistogram();
+		private final LatencyHistogram cpuTime = new LatencyHistogram();
+		private final LongAdder allocatedBytes = new LongAdder();
+		private final LongAdder outputBytes = new LongAdder();
+	}
+}
@@ -16,27 +16,123 @@
 package com.qwazr.scripts;
 
 import com.qwazr.server.RemoteService;
+import com.qwazr.server.ServerException;
 import com.qwazr.server.client.MultiClient;
 import com.qwazr.server.client.MultiWebApplicationException;
 import com.qwazr.utils.LoggerUtils;
 import com.qwazr.utils.concurrent.FunctionEx;
 
 import javax.ws.rs.NotFoundException;
+import javax.ws.rs.WebApplicationException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ScriptMultiClient extends MultiClient<ScriptSingleClient> implements ScriptServiceInterface {
 
 	private static final Logger LOGGER = LoggerUtils.getLogger(ScriptMultiClient.class);
 
+	private static final int OWNER_CACHE_SIZE = 10_000;
+
+	private final ExecutorService executorService;
+	private final ScriptSingleClient[] clients;
+	private final Map<String, ScriptSingleClient> clientsByNode;
+	private final LinkedHashMap<String, ScriptSingleClient> owners;
+
 	public ScriptMultiClient(ExecutorService executorService, RemoteService... remotes) {
-		super(getClients(remotes), executorService);
+		this(executorService, getClients(remotes));
+	}
+
+	ScriptMultiClient(final ExecutorService executorService, final ScriptSingleClient[] clients) {
+		super(clients, executorService);
+		this.executorService = executorService;
+		this.clients = clients;
+		this.clientsByNode = new HashMap<>();
+		if (clients != null)
+			for (final ScriptSingleClient client : clients)
+				clientsByNode.putIfAbsent(normalizeNode(client.serverAddress), client);
+		this.owners = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, ScriptSingleClient> eldest) {
+				return size() > OWNER_CACHE_SIZE;
+			}
+		};
+	}
+
+	private static String normalizeNode(final String node) {
+		return node != null && node.endsWith("/") ? node.substring(0, node.length() - 1) : node;
+	}
+
+	/**
+	 * Remember the node which owns each run, so the next lookups of these runs are sent to this node only.
+	 */
+	private <C extends Collection<ScriptRunStatus<?>>> C rememberOwners(final C statuses) {
+		if (statuses != null)
+			statuses.forEach(this::rememberOwner);
+		return statuses;
+	}
+
+	private <T extends ScriptRunStatus<?>> T rememberOwner(final T status) {
+		if (status == null || status.uuid == null)
+			return status;
+		final ScriptSingleClient client = clientsByNode.get(normalizeNode(status.node));
+		if (client != null)
+			rememberOwner(status.uuid, client);
+		return status;
+	}
+
+	private void rememberOwner(final String runId, final ScriptSingleClient client) {
+		synchronized (owners) {
+			owners.put(runId, client);
+		}
+	}
+
+	/**
+	 * The lookup is sent to the known owner of the run. If the owner is unknown or unreachable, the nodes are tried
+	 * at random, and the node which answers becomes the owner.
+	 */
+	private <T> T lookupRun(final String runId, final FunctionEx<ScriptSingleClient, T, Exception> action) {
+		final MultiWebApplicationException.Builder exceptions = MultiWebApplicationException.of(LOGGER);
+		final ScriptSingleClient owner;
+		synchronized (owners) {
+			owner = owners.get(runId);
+		}
+		if (owner != null) {
+			try {
+				return action.apply(owner);
+			} catch (WebApplicationException e) {
+				if (e.getResponse() != null && e.getResponse().getStatus() == 404) {
+					synchronized (owners) {
+						owners.remove(runId, owner);
+					}
+					throw e;
+				}
+				exceptions.add(e);
+			} catch (Exception e) {
+				exceptions.add(e);
+			}
+		}
+		return checkEmptyResult(runId, firstRandomSuccess(client -> {
+			final T result = action.apply(client);
+			rememberOwner(runId, client);
+			return result;
+		}, exceptions::add), exceptions);
 	}
 
 	private static ScriptSingleClient[] getClients(final RemoteService... remotes) {
@@ -49,33 +145,33 @@ public class ScriptMultiClient extends MultiClient<ScriptSingleClient> implement
 		return clients;
 	}
 
+	/**
+	 * The nodes of the multi client are the targets: the group and the rule are not forwarded.
+	 */
 	private FunctionEx<ScriptSingleClient, List<ScriptRunStatus<?>>, Exception> getRunScriptAction(
-			final String scriptPath, final String group, final TargetRuleEnum rule,
+			final String scriptPath, final PriorityEnum priority, final String idempotencyKey, final Long timeLimit,
 			final Map<String, String> variables) {
 		if (variables == null)
-			return c -> c.runScript(scriptPath, group, rule);
+			return c -> c.runScript(scriptPath, null, null, priority, idempotencyKey, timeLimit);
 		else
-			return c -> c.runScriptVariables(scriptPath, group, rule, variables);
-
+			return c -> c.runScriptVariables(scriptPath, null, null, priority, idempotencyKey, timeLimit, variables);
 	}
 
-	private List<ScriptRunStatus<?>> runScriptRuleAll(final String scriptPath, final String group,
-			final TargetRuleEnum rule, final Map<String, String> variables) {
+	private List<ScriptRunStatus<?>> runScriptRuleAll(final String scriptPath, final PriorityEnum priority,
+			final String idempotencyKey, final Long timeLimit, final Map<String, String> variables) {
 
 		final List<List<ScriptRunStatus<?>>> statusList =
-				forEachParallel(getRunScriptAction(scriptPath, group, rule, variables), LOGGER);
+				forEachParallel(getRunScriptAction(scriptPath, priority, idempotencyKey, timeLimit, variables), LOGGER);
 
 		final List<ScriptRunStatus<?>> results = new ArrayList<>();
 		statusList.forEach(results::addAll);
 		return results;
 	}
 
-	private List<ScriptRunStatus<?>> runScriptRuleOne(final String scriptPath, final String group,
-			final TargetRuleEnum rule, final Map<String, String> variables) {
-
-		final MultiWebApplicationException.Builder exceptions = MultiWebApplicationException.of(LOGGER);
-		final List<ScriptRunStatus<?>> result =
-				firstRandomSuccess(getRunScriptAction(scriptPath, group, rule, variables), exceptions::add);
+	private List<ScriptRunStatus<?>> runScriptRuleOne(
+			final FunctionEx<ScriptSingleClient, List<ScriptRunStatus<?>>, Exception> action,
+			final MultiWebApplicationException.Builder exceptions) {
+		final List<ScriptRunStatus<?>> result = firstRandomSuccess(action, exceptions::add);
 		if (result != null)
 			return result;
 		if (exceptions.isEmpty())
@@ -83,32 +179,223 @@ public class ScriptMultiClient extends MultiClient<ScriptSingleClient> implement
 		throw exceptions.build();
 	}
 
+	/**
+	 * Power of two choices: the load of two random nodes is compared, the least loaded one runs the script.
+	 * If it fails, the script is submitted to a random node.
+	 */
+	private List<ScriptRunStatus<?>> runScriptRuleLeastLoaded(
+			final FunctionEx<ScriptSingleClient, List<ScriptRunStatus<?>>, Exception> action) {
+		final MultiWebApplicationException.Builder exceptions = MultiWebApplicationException.of(LOGGER);
+		if (clients.length > 1) {
+			final ThreadLocalRandom random = ThreadLocalRandom.current();
+			final int first = random.nextInt(clients.length);
+			int second = random.nextInt(clients.length - 1);
+			if (second >= first)
+				second++;
+			final Future<ScriptLoad> secondLoad = executorService.submit(clients[second]::getLoad);
+			final double firstFactor = getLoadFactor(clients[first]::getLoad);
+			final double secondFactor = getLoadFactor(secondLoad::get);
+			final ScriptSingleClient client = clients[secondFactor < firstFactor ? second : first];
+			try {
+				return action.apply(client);
+			} catch (Exception e) {
+				exceptions.add(e);
+			}
+		}
+		return runScriptRuleOne(action, exceptions);
+	}
+
+	/**
+	 * The submissions having the same idempotency key are sent to the same node (see {@link RendezvousHash}), which
+	 * finds the duplicates. If this node fails, the script is submitted to a random node.
+	 */
+	private List<ScriptRunStatus<?>> runScriptRuleKey(final String scriptPath, final String idempotencyKey,
+			final FunctionEx<ScriptSingleClient, List<ScriptRunStatus<?>>, Exception> action) {
+		final MultiWebApplicationException.Builder exceptions = MultiWebApplicationException.of(LOGGER);
+		final ScriptSingleClient client =
+				clientsByNode.get(RendezvousHash.getOwner(scriptPath + '\n' + idempotencyKey, clientsByNode.keySet()));
+		if (client != null) {
+			try {
+				return action.apply(client);
+			} catch (Exception e) {
+				exceptions.add(e);
+			}
+		}
+		return runScriptRuleOne(action, exceptions);
+	}
+
+	private static double getLoadFactor(final Callable<ScriptLoad> loadSupplier) {
+		try {
+			return loadSupplier.call().getLoadFactor();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServerException(e);
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, e, () -> "Cannot get the load: " + e.getMessage());
+			return Double.MAX_VALUE;
+		}
+	}
+
 	@Override
-	public List<ScriptRunStatus<?>> runScript(final String scriptPath, final String group, final TargetRuleEnum rule) {
-		return runScriptVariables(scriptPath, group, rule, null);
+	public List<ScriptRunStatus<?>> runScript(final String scriptPath, final String group, final TargetRuleEnum rule,
+			final PriorityEnum priority, final String idempotencyKey, final Long timeLimit) {
+		return runScriptVariables(scriptPath, group, rule, priority, idempotencyKey, timeLimit, null);
 	}
 
+	/**
+	 * Without group, the rule is applied to the nodes of this client. With an idempotency key, the rules which pick
+	 * one node send the script to the node owning the key.
+	 * With a group, the script is submitted to one node, which applies the rule to the active nodes of the group.
+	 */
 	@Override
-	public List<ScriptRunStatus<?>> runScriptVariables(final String scriptPath, final String group, TargetRuleEnum rule,
-			Map<String, String> variables) {
-		if (rule == null)
-			rule = TargetRuleEnum.one;
-		switch (rule) {
+	public List<ScriptRunStatus<?>> runScriptVariables(final String scriptPath, final String group,
+			final TargetRuleEnum rule, final PriorityEnum priority, final String idempotencyKey, final Long timeLimit,
+			final Map<String, String> variables) {
+		if (group != null)
+			return rememberOwners(runScriptRuleOne(
+					c -> c.runScriptVariables(scriptPath, group, rule, priority, idempotencyKey, timeLimit, variables),
+					MultiWebApplicationException.of(LOGGER)));
+		final FunctionEx<ScriptSingleClient, List<ScriptRunStatus<?>>, Exception> action =
+				getRunScriptAction(scriptPath, priority, idempotencyKey, timeLimit, variables);
+		final TargetRuleEnum targetRule = rule == null ? TargetRuleEnum.one : rule;
+		if (idempotencyKey != null && targetRule != TargetRuleEnum.all)
+			return rememberOwners(runScriptRuleKey(scriptPath, idempotencyKey, action));
+		switch (targetRule) {
 		case all:
-			return runScriptRuleAll(scriptPath, group, rule, variables);
+			return rememberOwners(runScriptRuleAll(scriptPath, priority, idempotencyKey, timeLimit, variables));
+		case least_loaded:
+			return rememberOwners(runScriptRuleLeastLoaded(action));
 		default:
 		case one:
-			return runScriptRuleOne(scriptPath, group, rule, variables);
+			return rememberOwners(runScriptRuleOne(action, MultiWebApplicationException.of(LOGGER)));
+		}
+	}
+
+	/**
+	 * The batch is split in contiguous chunks, one per node, submitted in parallel. A chunk rejected by a node is
+	 * submitted to the next nodes. The statuses are returned in the order of the variables.
+	 */
+	@Override
+	public List<ScriptRunStatus<?>> runScriptBatch(final String scriptPath, final PriorityEnum priority,
+			final List<Map<String, String>> variablesList) {
+		if (variablesList == null || variablesList.isEmpty())
+			return Collections.emptyList();
+		final int chunkCount = Math.min(clients.length, variablesList.size());
+		final int chunkSize = (variablesList.size() + chunkCount - 1) / chunkCount;
+		final int firstClient = ThreadLocalRandom.current().nextInt(clients.length);
+		final MultiWebApplicationException.Builder exceptions = MultiWebApplicationException.of(LOGGER);
+		final List<Future<List<ScriptRunStatus<?>>>> futures = new ArrayList<>(chunkCount);
+		for (int i = 0; i < chunkCount; i++) {
+			final List<Map<String, String>> chunk = variablesList.subList(i * chunkSize,
+					Math.min(variablesList.size(), (i + 1) * chunkSize));
+			final int clientPos = firstClient + i;
+			futures.add(executorService.submit(() -> runScriptBatchChunk(scriptPath, priority, chunk, clientPos,
+					exceptions)));
+		}
+		final List<ScriptRunStatus<?>> results = new ArrayList<>(variablesList.size());
+		boolean complete = true;
+		try {
+			for (final Future<List<ScriptRunStatus<?>>> future : futures) {
+				try {
+					final List<ScriptRunStatus<?>> statuses = future.get();
+					if (statuses == null)
+						complete = false;
+					else
+						results.addAll(statuses);
+				} catch (ExecutionException e) {
+					synchronized (exceptions) {
+						exceptions.add(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+					}
+					complete = false;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServerException(e);
+		}
+		rememberOwners(results);
+		if (!complete) {
+			// The caller does not get the statuses: the runs of the chunks which succeeded are cancelled
+			cancelRuns(results);
+			throw exceptions.build();
+		}
+		return results;
+	}
+
+	private void cancelRuns(final List<ScriptRunStatus<?>> statuses) {
+		for (final ScriptRunStatus<?> status : statuses) {
+			try {
+				cancelRun(status.uuid);
+			} catch (Exception e) {
+				LOGGER.log(Level.WARNING, e, () -> "Cannot cancel the run " + status.uuid + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private List<ScriptRunStatus<?>> runScriptBatchChunk(final String scriptPath, final PriorityEnum priority,
+			final List<Map<String, String>> chunk, final int clientPos,
+			final MultiWebApplicationException.Builder exceptions) {
+		for (int i = 0; i < clients.length; i++) {
+			try {
+				return clients[(clientPos + i) % clients.length].runScriptBatch(scriptPath, priority, chunk);
+			} catch (Exception e) {
+				synchronized (exceptions) {
+					exceptions.add(e);
+				}
+			}
 		}
+		return null;
 	}
 
 	@Override
-	public Map<String, ScriptRunStatus<?>> getRunsStatus() {
+	public ScriptRunStatus<?> runScriptSync(final String scriptPath, final PriorityEnum priority, final Long timeout,
+			final Boolean stdOut) {
+		return runScriptSyncVariables(scriptPath, priority, timeout, stdOut, null);
+	}
+
+	@Override
+	public ScriptRunStatus<?> runScriptSyncVariables(final String scriptPath, final PriorityEnum priority,
+			final Long timeout, final Boolean stdOut, final Map<String, String> variables) {
+		final MultiWebApplicationException.Builder exceptions = MultiWebApplicationException.of(LOGGER);
+		if (clients != null && clients.length > 0) {
+			final int first = ThreadLocalRandom.current().nextInt(clients.length);
+			for (int i = 0; i < clients.length; i++) {
+				try {
+					return rememberOwner(clients[(first + i) % clients.length].runScriptSyncVariables(scriptPath,
+							priority, timeout, stdOut, variables));
+				} catch (WebApplicationException e) {
+					if (!isRejectedBeforeAdmission(e))
+						throw e;
+					exceptions.add(e);
+				}
+			}
+		}
+		throw exceptions.isEmpty() ? new NotFoundException("Script not found: " + scriptPath) : exceptions.build();
+	}
+
+	/**
+	 * Only a run which has not been accepted by the node can be submitted to another node (script not found, or too
+	 * many runs). After the admission, a failure (e.g. a timeout while waiting) must not execute the script again.
+	 */
+	private static boolean isRejectedBeforeAdmission(final WebApplicationException e) {
+		if (e.getResponse() == null)
+			return false;
+		final int status = e.getResponse().getStatus();
+		return status == 404 || status == 429;
+	}
+
+	/**
+	 * The filters are applied by each node, so only the matching runs are transferred and merged.
+	 */
+	@Override
+	public Map<String, ScriptRunStatus<?>> getRunsStatus(final Long since,
+			final Set<ScriptRunStatus.ScriptState> states, final String name) {
 		final Map<String, ScriptRunStatus<?>> finalResult = new TreeMap<>();
 		final MultiWebApplicationException.Builder exceptions = MultiWebApplicationException.of(LOGGER);
 		final List<Map<String, ScriptRunStatus<?>>> results =
-				forEachParallel(ScriptSingleClient::getRunsStatus, exceptions::add);
+				forEachParallel(client -> client.getRunsStatus(since, states, name), exceptions::add);
 		results.forEach(finalResult::putAll);
+		rememberOwners(finalResult.values());
 		return finalResult;
 	}
 
@@ -120,24 +407,115 @@ public class ScriptMultiClient extends MultiClient<ScriptSingleClient> implement
 	}
 
 	@Override
-	public InputStream getRunOut(final String runId) {
+	public InputStream getRunOut(final String runId, final Long offset, final Boolean follow) {
+		return lookupRun(runId, client -> client.getRunOut(runId, offset, follow));
+	}
+
+	@Override
+	public InputStream getRunErr(final String runId, final Long offset, final Boolean follow) {
+		return lookupRun(runId, client -> client.getRunErr(runId, offset, follow));
+	}
+
+	@Override
+	public ScriptRunStatus<?> waitRunStatus(final String runId, final ScriptRunStatus.ScriptState state,
+			final Long timeout) {
+		return lookupRun(runId, client -> client.waitRunStatus(runId, state, timeout));
+	}
+
+	/**
+	 * Every node is polled in parallel. As soon as one node returns some events, the other nodes are asked again
+	 * without waiting, so the merged "next" value is valid for every node.
+	 */
+	@Override
+	public ScriptRunEvents getRunEvents(final Long since, final Long timeout) {
 		final MultiWebApplicationException.Builder exceptions = MultiWebApplicationException.of(LOGGER);
-		return checkEmptyResult(runId, firstRandomSuccess(client -> client.getRunOut(runId), exceptions::add),
-				exceptions);
+		final ExecutorCompletionService<ScriptRunEvents> completionService =
+				new ExecutorCompletionService<>(executorService);
+		final List<Future<ScriptRunEvents>> futures = new ArrayList<>(clients.length);
+		for (final ScriptSingleClient client : clients)
+			futures.add(completionService.submit(() -> client.getRunEvents(since, timeout)));
+		final List<ScriptRunEvents> results = new ArrayList<>(clients.length);
+		try {
+			for (int i = 0; i < clients.length; i++) {
+				try {
+					final ScriptRunEvents events = completionService.take().get();
+					if (events == null)
+						continue;
+					if (!events.statuses.isEmpty())
+						return mergeEvents(forEachParallel(client -> client.getRunEvents(since, 0L), exceptions::add),
+								exceptions);
+					results.add(events);
+				} catch (ExecutionException e) {
+					exceptions.add(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServerException(e);
+		} finally {
+			futures.forEach(future -> future.cancel(true));
+		}
+		return mergeEvents(results, exceptions);
+	}
+
+	private ScriptRunEvents mergeEvents(final List<ScriptRunEvents> results,
+			final MultiWebApplicationException.Builder exceptions) {
+		if (results.isEmpty() && !exceptions.isEmpty())
+			throw exceptions.build();
+		long next = Long.MAX_VALUE;
+		final List<ScriptRunStatus<?>> statuses = new ArrayList<>();
+		for (final ScriptRunEvents events : results) {
+			next = Math.min(next, events.next);
+			statuses.addAll(events.statuses);
+		}
+		statuses.sort(Comparator.comparing(ScriptRunStatus::getUpdatedTime,
+				Comparator.nullsFirst(Comparator.naturalOrder())));
+		return new ScriptRunEvents(next == Long.MAX_VALUE ? System.currentTimeMillis() : next,
+				rememberOwners(statuses));
 	}
 
 	@Override
-	public InputStream getRunErr(final String runId) {
+	public ScriptMetrics getMetrics() {
 		final MultiWebApplicationException.Builder exceptions = MultiWebApplicationException.of(LOGGER);
-		return checkEmptyResult(runId, firstRandomSuccess(client -> client.getRunErr(runId), exceptions::add),
-				exceptions);
+		final List<ScriptMetrics> metrics = forEachParallel(ScriptSingleClient::getMetrics, exceptions::add);
+		if (metrics.isEmpty() && !exceptions.isEmpty())
+			throw exceptions.build();
+		return ScriptMetrics.merge(metrics);
 	}
 
 	@Override
-	public ScriptRunStatus<?> getRunStatus(final String runId) {
+	public String getMetricsText() {
+		return getMetrics().toPrometheus();
+	}
+
+	@Override
+	public Map<String, ScriptMetrics.Script> getTopScripts(final CostEnum cost, final Integer limit) {
+		return getMetrics().getTop(cost, limit == null ? DEFAULT_TOP_LIMIT : limit);
+	}
+
+	@Override
+	public ScriptLoad getLoad() {
 		final MultiWebApplicationException.Builder exceptions = MultiWebApplicationException.of(LOGGER);
-		return checkEmptyResult(runId, firstRandomSuccess(client -> client.getRunStatus(runId), exceptions::add),
-				exceptions);
+		final List<ScriptLoad> loads = forEachParallel(ScriptSingleClient::getLoad, exceptions::add);
+		if (loads.isEmpty() && !exceptions.isEmpty())
+			throw exceptions.build();
+		int running = 0, queued = 0, maxConcurrency = 0;
+		for (final ScriptLoad load : loads) {
+			running += load.running;
+			queued += load.queued;
+			maxConcurrency += load.maxConcurrency;
+		}
+		return new ScriptLoad(running, queued, maxConcurrency);
+	}
+
+	@Override
+	public ScriptRunStatus<?> getRunStatus(final String runId) {
+		return lookupRun(runId, client -> client.getRunStatus(runId));
+	}
+
+	@Override
+	public ScriptRunStatus<?> cancelRun(final String runId) {
+		return lookupRun(runId, client -> client.cancelRun(runId));
 	}
 
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Per script settings of a Java script. A negative value means that the server setting applies.
+ * The JS scripts use a JSON file next to the script instead (my_script.js.json), see {@link ScriptDefinition}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface ScriptOptions {
+
+	/**
+	 * @return how long (in milliseconds) a finished run is kept
+	 */
+	long retentionTime() default -1;
+
+	/**
+	 * @return how many finished runs of this script are kept
+	 */
+	int retentionCount() default -1;
+
+	/**
+	 * @return true if one instance can execute several runs at the same time: a single injected instance is shared
+	 * by all the runs
+	 */
+	boolean threadSafe() default false;
+
+	/**
+	 * @return the number of idle instances kept for reuse. An instance is reused by one run at a time, after a
+	 * successful run. Zero means that each run creates and injects a new instance.
+	 */
+	int poolSize() default 0;
+
+	/**
+	 * @return how many runs of this script a node accepts at the same time (queued or running). Beyond, the new
+	 * submissions are rejected (429). A negative value means no limit.
+	 */
+	int maxConcurrency() default -1;
+
+	/**
+	 * @return the maximum execution time of a run in milliseconds. Beyond, the run is stopped and ends with the
+	 * timeout state. A negative value means that the server setting applies.
+	 */
+	long timeLimit() default -1;
+}
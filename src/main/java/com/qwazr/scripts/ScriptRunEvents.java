@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The runs updated after a given time.
+ * The next call should pass the "next" value as "since" parameter.
+ * When the events of several nodes are merged, a run may be returned twice (the clocks should be synchronized).
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonAutoDetect(getterVisibility = JsonAutoDetect.Visibility.NONE,
+		setterVisibility = JsonAutoDetect.Visibility.NONE,
+		creatorVisibility = JsonAutoDetect.Visibility.NONE,
+		isGetterVisibility = JsonAutoDetect.Visibility.NONE,
+		fieldVisibility = JsonAutoDetect.Visibility.PUBLIC_ONLY)
+public class ScriptRunEvents {
+
+	public final long next;
+
+	public final List<ScriptRunStatus<?>> statuses;
+
+	@JsonCreator
+	ScriptRunEvents(@JsonProperty("next") final long next,
+			@JsonProperty("statuses") final List<ScriptRunStatus<?>> statuses) {
+		this.next = next;
+		this.statuses = statuses == null ? Collections.emptyList() : statuses;
+	}
+
+	public long getNext() {
+		return next;
+	}
+
+	public List<ScriptRunStatus<?>> getStatuses() {
+		return statuses;
+	}
+
+	@Override
+	public boolean equals(final Object other) {
+		if (!(other instanceof ScriptRunEvents))
+			return false;
+		if (other == this)
+			return true;
+		final ScriptRunEvents o = (ScriptRunEvents) other;
+		return next == o.next && Objects.equals(statuses, o.statuses);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(next, statuses);
+	}
+}
@@ -0,0 +1,445 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import com.qwazr.server.ServerException;
+import com.qwazr.utils.LoggerUtils;
+
+import javax.ws.rs.core.Response;
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * The runs known by this node.
+ * Registration and lookup are lock free. The finished runs are evicted by the retention policy:
+ * <ul>
+ * <li>time: the finished runs are indexed by expiration time in a DelayQueue drained by a background sweeper,</li>
+ * <li>count: only the last N finished runs of each script are kept,</li>
+ * <li>memory: the oldest finished runs are evicted when the retained memory exceeds the budget.</li>
+ * </ul>
+ * The time and the count can be overridden per script by the {@link ScriptDefinition}.
+ * The registry also enforces the concurrency limit of each script, and finds the run submitted with an idempotency
+ * key as long as this run is retained.
+ * The last state changes are kept in a bounded log, used to answer the long polling requests.
+ */
+class ScriptRunRegistry implements ScriptRunListener, Closeable {
+
+	private static final Logger LOGGER = LoggerUtils.getLogger(ScriptRunRegistry.class);
+
+	private static final int CHANGE_LOG_SIZE = 10_000;
+
+	private final long retentionTime;
+	private final int retentionCount;
+	private final long retentionMemory;
+
+	private final ConcurrentHashMap<String, Registered> runs;
+	private final ConcurrentHashMap<String, Registered> runsByKey;
+	private final ConcurrentHashMap<String, AtomicInteger> activeByScript;
+	private final DelayQueue<Registered> expirations;
+	private final ConcurrentHashMap<String, ArrayDeque<Registered>> finishedByScript;
+	private final ConcurrentLinkedQueue<Registered> finishedOrder;
+	private final AtomicLong retainedMemory;
+	private final ArrayDeque<Change> changes;
+	private long truncatedTime;
+	private long lastChangeTime;
+	private long lastPollTime;
+	private final Thread sweeper;
+	private final ScriptMetricsRecorder metrics;
+
+	ScriptRunRegistry(final ScriptsConfiguration configuration, final ScriptMetricsRecorder metrics) {
+		this.metrics = metrics;
+		retentionTime = configuration.retentionTime;
+		retentionCount = configuration.retentionCount;
+		retentionMemory = configuration.retentionMemory;
+		runs = new ConcurrentHashMap<>();
+		runsByKey = new ConcurrentHashMap<>();
+		activeByScript = new ConcurrentHashMap<>();
+		expirations = new DelayQueue<>();
+		finishedByScript = new ConcurrentHashMap<>();
+		finishedOrder = new ConcurrentLinkedQueue<>();
+		retainedMemory = new AtomicLong();
+		changes = new ArrayDeque<>();
+		truncatedTime = System.currentTimeMillis();
+		lastChangeTime = truncatedTime;
+		lastPollTime = truncatedTime;
+		sweeper = new Thread(this::sweep, "qwazr-scripts-sweeper");
+		sweeper.setDaemon(true);
+		sweeper.start();
+	}
+
+	/**
+	 * Register a new run. If a run of the same script has been registered with the same idempotency key, this run is
+	 * returned instead, once it has been accepted by the executor (see {@link #admitted(RunThreadAbstract)}). If
+	 * this run is rejected, the new run is registered in its place.
+	 *
+	 * @param runThread      the new run
+	 * @param idempotencyKey an optional key identifying the submission
+	 * @return the registered run: the given one, or the existing run having the same key
+	 * @throws ServerException (429) if the concurrency limit of the script is reached
+	 */
+	RunThreadAbstract<?> add(final RunThreadAbstract<?> runThread, final String idempotencyKey) {
+		final Registered registered = new Registered(runThread,
+				idempotencyKey == null ? null : runThread.getScriptKey() + '\n' + idempotencyKey);
+		for (; ; ) {
+			if (registered.key != null) {
+				final Registered existing = runsByKey.get(registered.key);
+				if (existing != null) {
+					if (awaitAdmission(existing))
+						return existing.runThread;
+					continue;
+				}
+			}
+			final Integer maxConcurrency = runThread.getDefinition().maxConcurrency;
+			if (maxConcurrency != null) {
+				final AtomicInteger active =
+						activeByScript.computeIfAbsent(runThread.getScriptKey(), key -> new AtomicInteger());
+				if (active.incrementAndGet() > maxConcurrency) {
+					active.decrementAndGet();
+					// The limit may have been reached by a concurrent submission having the same key
+					if (registered.key != null && runsByKey.containsKey(registered.key))
+						continue;
+					throw new ServerException(Response.Status.TOO_MANY_REQUESTS,
+							"Too many runs of " + runThread.getScriptName() + " (max: " + maxConcurrency + ")");
+				}
+				registered.active = active;
+			}
+			runs.put(runThread.getUUID(), registered);
+			// The key is published once the run is registered. Until the run is admitted by the executor, the
+			// duplicates wait for its admission.
+			if (registered.key != null && runsByKey.putIfAbsent(registered.key, registered) != null) {
+				runs.remove(runThread.getUUID(), registered);
+				registered.release();
+				continue;
+			}
+			runThread.setListener(this);
+			onStateChange(runThread);
+			return runThread;
+		}
+	}
+
+	/**
+	 * The run has been accepted by the executor: the duplicate submissions waiting for it get it.
+	 */
+	void admitted(final RunThreadAbstract<?> runThread) {
+		final Registered registered = runs.get(runThread.getUUID());
+		if (registered != null && registered.runThread == runThread)
+			registered.admit(true);
+	}
+
+	/**
+	 * @return true if the run has been admitted, false if it has been rejected (then its key is no more registered)
+	 */
+	private static boolean awaitAdmission(final Registered registered) {
+		if (registered.admission == null)
+			return true;
+		try {
+			registered.admission.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServerException(e);
+		}
+		return registered.admitted;
+	}
+
+	void remove(final RunThreadAbstract<?> runThread) {
+		final Registered registered = runs.get(runThread.getUUID());
+		if (registered != null && registered.runThread == runThread)
+			evict(registered, false);
+	}
+
+	RunThreadAbstract<?> get(final String uuid) {
+		final Registered registered = runs.get(uuid);
+		return registered == null ? null : registered.runThread;
+	}
+
+	int size() {
+		return runs.size();
+	}
+
+	long getRetainedMemory() {
+		return retainedMemory.get();
+	}
+
+	/**
+	 * The filters are applied before building the statuses. A null filter matches every run.
+	 */
+	Map<String, ScriptRunStatus<?>> getStatus(final Long since, final Set<ScriptRunStatus.ScriptState> states,
+			final String name) {
+		final boolean anyState = states == null || states.isEmpty();
+		final LinkedHashMap<String, ScriptRunStatus<?>> runStatusMap = new LinkedHashMap<>();
+		runs.forEach((key, registered) -> {
+			final RunThreadAbstract<?> runThread = registered.runThread;
+			if (since != null && runThread.getUpdatedTime() < since)
+				return;
+			if (!anyState && !states.contains(runThread.getState()))
+				return;
+			if (name != null && !name.equals(runThread.getScriptName()))
+				return;
+			runStatusMap.put(key, runThread.getStatus());
+		});
+		return runStatusMap;
+	}
+
+	@Override
+	public void onStateChange(final RunThreadAbstract<?> runThread) {
+		synchronized (changes) {
+			// A change logged after a poll is always more recent than the "next" time returned by this poll
+			final long time = Math.max(System.currentTimeMillis(), lastPollTime + 1);
+			if (changes.size() >= CHANGE_LOG_SIZE)
+				truncatedTime = changes.removeFirst().time;
+			changes.addLast(new Change(time, runThread.getUUID()));
+			lastChangeTime = Math.max(lastChangeTime, time);
+			changes.notifyAll();
+		}
+	}
+
+	/**
+	 * Returns the runs updated after the given time. If there is none, wait for a state change until the timeout.
+	 *
+	 * @param since   the "next" time returned by the previous call (0 for all the runs)
+	 * @param timeout the maximum time to wait (in ms)
+	 * @return the runs updated since the given time
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	ScriptRunEvents getEvents(final long since, final long timeout) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		for (; ; ) {
+			final ScriptRunEvents events = collectChanges(since);
+			if (!events.statuses.isEmpty())
+				return events;
+			synchronized (changes) {
+				if (lastChangeTime <= Math.max(events.next, since)) {
+					final long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0)
+						return events;
+					changes.wait(remaining);
+				}
+			}
+		}
+	}
+
+	private ScriptRunEvents collectChanges(final long since) {
+		final Map<String, RunThreadAbstract<?>> changed = new HashMap<>();
+		final long next;
+		final boolean complete;
+		synchronized (changes) {
+			next = Math.max(System.currentTimeMillis(), lastChangeTime);
+			lastPollTime = Math.max(lastPollTime, next);
+			complete = since >= truncatedTime;
+			if (complete) {
+				final Iterator<Change> iterator = changes.descendingIterator();
+				while (iterator.hasNext()) {
+					final Change change = iterator.next();
+					if (change.time <= since)
+						break;
+					if (changed.containsKey(change.uuid))
+						continue;
+					final Registered registered = runs.get(change.uuid);
+					if (registered != null)
+						changed.put(change.uuid, registered.runThread);
+				}
+			}
+		}
+		if (!complete)
+			runs.forEach((uuid, registered) -> {
+				if (registered.runThread.getUpdatedTime() > since)
+					changed.put(uuid, registered.runThread);
+			});
+		final List<ScriptRunStatus<?>> statuses = new ArrayList<>(changed.size());
+		changed.values().forEach(runThread -> statuses.add(runThread.getStatus()));
+		statuses.sort(Comparator.comparing(ScriptRunStatus::getUpdatedTime));
+		return new ScriptRunEvents(next, statuses);
+	}
+
+	@Override
+	public void onEnd(final RunThreadAbstract<?> runThread) {
+		if (metrics != null)
+			metrics.onEnd(runThread);
+		final Registered registered = runs.get(runThread.getUUID());
+		if (registered == null || registered.runThread != runThread)
+			return;
+		registered.release();
+		final ScriptDefinition definition = runThread.getDefinition();
+
+		final long time = definition.retentionTime != null ? definition.retentionTime : retentionTime;
+		final Long endTime = runThread.getEndTime();
+		registered.expirationTime = (endTime == null ? System.currentTimeMillis() : endTime) + time;
+		runThread.setExpirationTime(registered.expirationTime);
+		expirations.add(registered);
+
+		final int count = definition.retentionCount != null ? definition.retentionCount : retentionCount;
+		if (count > 0) {
+			final ArrayDeque<Registered> finished =
+					finishedByScript.computeIfAbsent(runThread.getScriptKey(), key -> new ArrayDeque<>());
+			synchronized (finished) {
+				finished.addLast(registered);
+				registered.finished = finished;
+				while (finished.size() > count)
+					evict(finished.pollFirst(), true);
+			}
+		}
+
+		if (retentionMemory > 0) {
+			registered.retainedSize = runThread.getRetainedSize();
+			retainedMemory.addAndGet(registered.retainedSize);
+			finishedOrder.add(registered);
+			Registered oldest;
+			while ((oldest = finishedOrder.peek()) != null &&
+					(oldest.evicted || retainedMemory.get() > retentionMemory)) {
+				if (finishedOrder.remove(oldest))
+					evict(oldest, true);
+			}
+		}
+	}
+
+	private void evict(final Registered registered, final boolean expired) {
+		if (!runs.remove(registered.runThread.getUUID(), registered))
+			return;
+		registered.evicted = true;
+		registered.release();
+		if (registered.key != null)
+			runsByKey.remove(registered.key, registered);
+		// A run evicted before its admission has been rejected, unless the executor took it (e.g. a quick run)
+		registered.admit(registered.runThread.getState() != ScriptRunStatus.ScriptState.ready);
+		if (expired && metrics != null)
+			metrics.onExpired(registered.runThread);
+		if (registered.retainedSize > 0)
+			retainedMemory.addAndGet(-registered.retainedSize);
+		final ArrayDeque<Registered> finished = registered.finished;
+		if (finished != null) {
+			synchronized (finished) {
+				finished.remove(registered);
+			}
+		}
+		registered.runThread.close();
+		LOGGER.finest(() -> "Evict " + registered.runThread.getUUID());
+	}
+
+	private void sweep() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				final Registered registered = expirations.take();
+				// Already evicted by the count or memory limits
+				if (!registered.evicted)
+					evict(registered, true);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stop all the runs which are not finished (including the runs executed by the caller thread).
+	 */
+	void stopAll(final ScriptRunStatus.ScriptState reason) {
+		runs.values().forEach(registered -> registered.runThread.stop(reason));
+	}
+
+	@Override
+	public void close() {
+		sweeper.interrupt();
+		runs.values().forEach(registered -> registered.runThread.close());
+	}
+
+	/**
+	 * Only the UUID is logged: the change log does not retain the evicted runs
+	 */
+	private static class Change {
+
+		private final long time;
+		private final String uuid;
+
+		private Change(final long time, final String uuid) {
+			this.time = time;
+			this.uuid = uuid;
+		}
+	}
+
+	private static class Registered implements Delayed {
+
+		private final RunThreadAbstract<?> runThread;
+		private final String key;
+		private volatile long expirationTime;
+		private volatile long retainedSize;
+		private volatile ArrayDeque<Registered> finished;
+		private volatile boolean evicted;
+		private volatile AtomicInteger active;
+		private final CountDownLatch admission;
+		private volatile boolean admitted;
+
+		private Registered(final RunThreadAbstract<?> runThread, final String key) {
+			this.runThread = runThread;
+			this.key = key;
+			this.admission = key == null ? null : new CountDownLatch(1);
+		}
+
+		/**
+		 * Record the admission result (once)
+		 */
+		private void admit(final boolean accepted) {
+			if (admission == null)
+				return;
+			synchronized (this) {
+				if (admission.getCount() == 0)
+					return;
+				admitted = accepted;
+			}
+			admission.countDown();
+		}
+
+		/**
+		 * Give back the concurrency slot of the run (once)
+		 */
+		private void release() {
+			final AtomicInteger slot = active;
+			if (slot == null)
+				return;
+			synchronized (this) {
+				if (active == null)
+					return;
+				active = null;
+			}
+			slot.decrementAndGet();
+		}
+
+		@Override
+		public long getDelay(final TimeUnit unit) {
+			return unit.convert(expirationTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(final Delayed o) {
+			return Long.compare(expirationTime, ((Registered) o).expirationTime);
+		}
+	}
+}
@@ -36,7 +36,7 @@ import java.util.Objects;
 public class ScriptRunStatus<T> {
 
 	public enum ScriptState {
-		ready, running, terminated, error
+		ready, queued, running, terminated, error, cancelled, timeout
 	}
 
 	public final String node;
@@ -49,6 +49,10 @@ public class ScriptRunStatus<T> {
 	public final String uuid;
 	public final String name;
 	public final ScriptState state;
+	@JsonProperty("updated")
+	public final Date updatedTime;
+	@JsonProperty("queued")
+	public final Date queuedTime;
 	@JsonProperty("start")
 	public final Date startTime;
 	@JsonProperty("end")
@@ -56,14 +60,34 @@ public class ScriptRunStatus<T> {
 	public final Map<String, Object> bindings;
 	public final String error;
 	public final T result;
+	@JsonProperty("std_out")
+	public final String stdOut;
+	/**
+	 * The CPU time used by a finished run in microseconds (if supported by the JVM)
+	 */
+	@JsonProperty("cpu_time")
+	public final Long cpuTime;
+	/**
+	 * The number of bytes allocated by a finished run (if supported by the JVM)
+	 */
+	@JsonProperty("allocated_bytes")
+	public final Long allocatedBytes;
+	/**
+	 * The number of bytes produced on the standard and error outputs by a finished run
+	 */
+	@JsonProperty("output_bytes")
+	public final Long outputBytes;
 
 	@JsonCreator
 	ScriptRunStatus(@JsonProperty("node") String node, @JsonProperty("name") String name,
 			@JsonProperty("_status") String statusPath, @JsonProperty("_std_out") String stdOutPath,
 			@JsonProperty("_std_err") String stdErrPath, @JsonProperty("uuid") String uuid,
-			@JsonProperty("state") ScriptState state, @JsonProperty("start") Date startTime,
-			@JsonProperty("end") Date endTime, @JsonProperty("bindings") Map<String, Object> bindings,
-			@JsonProperty("error") String error, @JsonProperty("result") T result) {
+			@JsonProperty("state") ScriptState state, @JsonProperty("updated") Date updatedTime,
+			@JsonProperty("queued") Date queuedTime,
+			@JsonProperty("start") Date startTime, @JsonProperty("end") Date endTime, @JsonProperty("bindings") Map<String, Object> bindings,
+			@JsonProperty("error") String error, @JsonProperty("result") T result,
+			@JsonProperty("std_out") String stdOut, @JsonProperty("cpu_time") Long cpuTime,
+			@JsonProperty("allocated_bytes") Long allocatedBytes, @JsonProperty("output_bytes") Long outputBytes) {
 		this.node = node;
 		this.statusPath = statusPath;
 		this.stdOutPath = stdOutPath;
@@ -71,11 +95,17 @@ public class ScriptRunStatus<T> {
 		this.uuid = uuid;
 		this.name = name;
 		this.state = state;
+		this.updatedTime = updatedTime;
+		this.queuedTime = queuedTime;
 		this.startTime = startTime;
 		this.endTime = endTime;
 		this.bindings = bindings;
 		this.error = error;
 		this.result = result;
+		this.stdOut = stdOut;
+		this.cpuTime = cpuTime;
+		this.allocatedBytes = allocatedBytes;
+		this.outputBytes = outputBytes;
 	}
 
 	public String getUuid() {
@@ -86,6 +116,14 @@ public class ScriptRunStatus<T> {
 		return name;
 	}
 
+	public Date getUpdatedTime() {
+		return updatedTime;
+	}
+
+	public Date getQueuedTime() {
+		return queuedTime;
+	}
+
 	public Date getStartTime() {
 		return startTime;
 	}
@@ -98,12 +136,23 @@ public class ScriptRunStatus<T> {
 		return state;
 	}
 
-	ScriptRunStatus(String node, String name, String uuid, ScriptState state, Long startTime, Long endTime,
-			Map<String, Object> bindings, Exception exception, T result) {
+	ScriptRunStatus(String node, String name, String uuid, ScriptState state, long updatedTime, Long queuedTime,
+			Long startTime, Long endTime, Map<String, Object> bindings, Exception exception, T result, Long cpuTime,
+			Long allocatedBytes, Long outputBytes) {
 		this(node, name, node + "/scripts/status/" + uuid, node + "/scripts/status/" + uuid + "/out",
-				node + "/scripts/status/" + uuid + "/err", uuid, state, startTime == null ? null : new Date(startTime),
-				endTime == null ? null : new Date(endTime), bindings, exception == null ? null : exception.getMessage(),
-				result);
+				node + "/scripts/status/" + uuid + "/err", uuid, state, new Date(updatedTime),
+				queuedTime == null ? null : new Date(queuedTime),
+				startTime == null ? null : new Date(startTime), endTime == null ? null : new Date(endTime), bindings,
+				exception == null ? null : exception.getMessage(), result, null, cpuTime, allocatedBytes, outputBytes);
+	}
+
+	/**
+	 * @param stdOut the content of the standard output
+	 * @return a copy of this status including the standard output
+	 */
+	ScriptRunStatus<T> withStdOut(final String stdOut) {
+		return new ScriptRunStatus<>(node, name, statusPath, stdOutPath, stdErrPath, uuid, state, updatedTime,
+				queuedTime, startTime, endTime, bindings, error, result, stdOut, cpuTime, allocatedBytes, outputBytes);
 	}
 
 	private ScriptRunStatus(ScriptRunStatus<?> src, Long startTime) {
@@ -116,9 +165,15 @@ public class ScriptRunStatus<T> {
 		this.stdOutPath = null;
 		this.stdErrPath = null;
 		this.state = null;
+		this.updatedTime = null;
+		this.queuedTime = null;
 		this.endTime = null;
 		this.bindings = null;
 		this.result = null;
+		this.stdOut = null;
+		this.cpuTime = null;
+		this.allocatedBytes = null;
+		this.outputBytes = null;
 	}
 
 	public static List<ScriptRunStatus<?>> cloneSchedulerResultList(List<ScriptRunStatus<?>> sources, Long startTime) {
@@ -140,8 +195,11 @@ public class ScriptRunStatus<T> {
 				Objects.equals(startTime, o.startTime) && Objects.equals(error, o.error) &&
 				Objects.equals(statusPath, o.statusPath) && Objects.equals(stdOutPath, o.stdOutPath) &&
 				Objects.equals(stdErrPath, o.stdErrPath) && Objects.equals(state, o.state) &&
+				Objects.equals(updatedTime, o.updatedTime) && Objects.equals(queuedTime, o.queuedTime) &&
 				Objects.equals(endTime, o.endTime) && Objects.equals(bindings, o.bindings) &&
-				Objects.equals(result, o.result);
+				Objects.equals(result, o.result) && Objects.equals(stdOut, o.stdOut) &&
+				Objects.equals(cpuTime, o.cpuTime) && Objects.equals(allocatedBytes, o.allocatedBytes) &&
+				Objects.equals(outputBytes, o.outputBytes);
 	}
 
 	@Override
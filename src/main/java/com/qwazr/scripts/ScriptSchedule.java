@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.qwazr.utils.ObjectMappers;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A periodic run of a script, fired by the scheduler of the scripts service. The schedule gives either a cron
+ * expression or an interval.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonAutoDetect(getterVisibility = JsonAutoDetect.Visibility.NONE,
+		setterVisibility = JsonAutoDetect.Visibility.NONE,
+		creatorVisibility = JsonAutoDetect.Visibility.NONE,
+		isGetterVisibility = JsonAutoDetect.Visibility.NONE,
+		fieldVisibility = JsonAutoDetect.Visibility.PUBLIC_ONLY)
+public class ScriptSchedule {
+
+	private static final TypeReference<Map<String, ScriptSchedule>> MAP_TYPE = new TypeReference<>() {
+	};
+
+	public final String script;
+
+	/**
+	 * A five fields cron expression (minute hour day-of-month month day-of-week)
+	 */
+	public final String cron;
+
+	/**
+	 * The time between two fire times in milliseconds
+	 */
+	public final Long interval;
+
+	@JsonProperty("time_zone")
+	public final String timeZone;
+
+	/**
+	 * The cluster group of the nodes allowed to fire the schedule
+	 */
+	public final String group;
+
+	public final PriorityEnum priority;
+
+	public final MisfireEnum misfire;
+
+	public final Map<String, String> variables;
+
+	@JsonCreator
+	public ScriptSchedule(@JsonProperty("script") final String script, @JsonProperty("cron") final String cron,
+			@JsonProperty("interval") final Long interval, @JsonProperty("time_zone") final String timeZone,
+			@JsonProperty("group") final String group, @JsonProperty("priority") final PriorityEnum priority,
+			@JsonProperty("misfire") final MisfireEnum misfire,
+			@JsonProperty("variables") final Map<String, String> variables) {
+		this.script = script;
+		this.cron = cron;
+		this.interval = interval;
+		this.timeZone = timeZone;
+		this.group = group;
+		this.priority = priority;
+		this.misfire = misfire;
+		this.variables = variables;
+	}
+
+	public MisfireEnum getMisfire() {
+		return misfire == null ? MisfireEnum.fire_once : misfire;
+	}
+
+	public PriorityEnum getPriority() {
+		return priority == null ? PriorityEnum.normal : priority;
+	}
+
+	/**
+	 * @return the schedules by name
+	 */
+	static Map<String, ScriptSchedule> load(final Path schedulesFilePath) throws IOException {
+		return ObjectMappers.JSON.readValue(schedulesFilePath.toFile(), MAP_TYPE);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(script, cron, interval);
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+		if (o == this)
+			return true;
+		if (!(o instanceof ScriptSchedule))
+			return false;
+		final ScriptSchedule s = (ScriptSchedule) o;
+		return Objects.equals(script, s.script) && Objects.equals(cron, s.cron) &&
+				Objects.equals(interval, s.interval) && Objects.equals(timeZone, s.timeZone) &&
+				Objects.equals(group, s.group) && Objects.equals(priority, s.priority) &&
+				Objects.equals(misfire, s.misfire) && Objects.equals(variables, s.variables);
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import com.qwazr.server.ServerException;
+import com.qwazr.utils.LoggerUtils;
+
+import javax.ws.rs.core.Response;
+import java.io.Closeable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fires the schedules of the schedules file (see {@link ScriptSchedule}) on this node. The file is read again when
+ * it is modified.
+ * <ul>
+ * <li>No overlap: a schedule does not start a new run while its previous run is not finished,</li>
+ * <li>misfire: a fire time which cannot be honored is either skipped or merged in one later run
+ * (see {@link MisfireEnum}),</li>
+ * <li>cluster: each fire time is honored by one node only, the owner of the schedule among the active nodes
+ * (see {@link RendezvousHash}).</li>
+ * </ul>
+ */
+class ScriptScheduler implements Closeable {
+
+	private static final Logger LOGGER = LoggerUtils.getLogger(ScriptScheduler.class);
+
+	/**
+	 * The maximum time between two checks of the schedules file (in milliseconds)
+	 */
+	static final long CHECK_PERIOD = 1000;
+
+	/**
+	 * A fire time is missed when the scheduler is late by more than this time (in milliseconds)
+	 */
+	static final long MISFIRE_THRESHOLD = 5000;
+
+	private final ScriptManager scriptManager;
+	private final Path schedulesFilePath;
+	private final Thread thread;
+	private final Object monitor = new Object();
+	private volatile boolean closed;
+
+	private FileTime lastModified;
+	private Map<String, Job> jobs;
+
+	ScriptScheduler(final ScriptManager scriptManager, final Path schedulesFilePath) {
+		this.scriptManager = scriptManager;
+		this.schedulesFilePath = schedulesFilePath;
+		this.jobs = Collections.emptyMap();
+		thread = new Thread(this::schedule, "qwazr-scripts-scheduler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void schedule() {
+		while (!closed) {
+			try {
+				loadIfModified();
+				final long now = System.currentTimeMillis();
+				long wakeUp = now + CHECK_PERIOD;
+				for (final Job job : jobs.values()) {
+					// A failing job (e.g. the cluster service is not reachable) is retried at the next check, the
+					// other jobs are still fired
+					try {
+						wakeUp = Math.min(wakeUp, job.check(now));
+					} catch (RuntimeException e) {
+						LOGGER.log(Level.WARNING, e, () -> "Schedule " + job.name + " failure: " + e.getMessage());
+					}
+				}
+				synchronized (monitor) {
+					final long wait = wakeUp - System.currentTimeMillis();
+					if (!closed && wait > 0)
+						monitor.wait(wait);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.SEVERE, e, () -> "Scheduler failure: " + e.getMessage());
+			}
+		}
+	}
+
+	private void loadIfModified() {
+		final FileTime modified;
+		try {
+			modified = Files.exists(schedulesFilePath) ? Files.getLastModifiedTime(schedulesFilePath) : null;
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, e, () -> "Cannot read the schedules: " + schedulesFilePath);
+			return;
+		}
+		if (modified == null ? lastModified == null : modified.equals(lastModified))
+			return;
+		lastModified = modified;
+		final Map<String, ScriptSchedule> schedules;
+		try {
+			schedules = modified == null ? Collections.emptyMap() : ScriptSchedule.load(schedulesFilePath);
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, e,
+					() -> "Cannot load the schedules, the previous ones are kept: " + schedulesFilePath + " - " +
+							e.getMessage());
+			return;
+		}
+		final long now = System.currentTimeMillis();
+		final Map<String, Job> newJobs = new LinkedHashMap<>();
+		schedules.forEach((name, schedule) -> {
+			final Job job = jobs.get(name);
+			if (job != null && job.schedule.equals(schedule)) {
+				newJobs.put(name, job);
+				return;
+			}
+			try {
+				newJobs.put(name, new Job(name, schedule, now));
+			} catch (IllegalArgumentException e) {
+				LOGGER.log(Level.WARNING, e, () -> "Invalid schedule: " + name + " - " + e.getMessage());
+			}
+		});
+		jobs = newJobs;
+		LOGGER.info(() -> "Schedules loaded: " + newJobs.keySet());
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		synchronized (monitor) {
+			monitor.notifyAll();
+		}
+		thread.interrupt();
+	}
+
+	private class Job {
+
+		private final String name;
+		private final ScriptSchedule schedule;
+		private final CronExpression cron;
+		private final ZoneId zone;
+		private final MisfireEnum misfire;
+		private long nextFireTime;
+		private boolean pending;
+		private String lastRunId;
+
+		private Job(final String name, final ScriptSchedule schedule, final long now) {
+			if (schedule.script == null || schedule.script.isEmpty())
+				throw new IllegalArgumentException("The script is missing");
+			if ((schedule.cron == null) == (schedule.interval == null))
+				throw new IllegalArgumentException("Either a cron expression or an interval is required");
+			if (schedule.interval != null && schedule.interval <= 0)
+				throw new IllegalArgumentException("The interval must be greater than zero");
+			this.name = name;
+			this.schedule = schedule;
+			this.cron = schedule.cron == null ? null : new CronExpression(schedule.cron);
+			this.zone = schedule.timeZone == null ? ZoneId.systemDefault() : ZoneId.of(schedule.timeZone);
+			this.misfire = schedule.getMisfire();
+			this.nextFireTime = cron == null ? now + schedule.interval : cron.next(now, zone);
+		}
+
+		/**
+		 * @return the first fire time after the given time
+		 */
+		private long getNextFireTime(final long now) {
+			if (cron != null)
+				return cron.next(now, zone);
+			return nextFireTime + ((now - nextFireTime) / schedule.interval + 1) * schedule.interval;
+		}
+
+		/**
+		 * Fire the schedule if it is due.
+		 *
+		 * @return the time of the next check
+		 */
+		private long check(final long now) {
+			if (!pending) {
+				if (nextFireTime < 0 || now < nextFireTime)
+					return nextFireTime < 0 ? Long.MAX_VALUE : nextFireTime;
+				final boolean late = now - nextFireTime > MISFIRE_THRESHOLD;
+				nextFireTime = getNextFireTime(now);
+				if (late && misfire == MisfireEnum.skip) {
+					LOGGER.warning(() -> "Schedule " + name + " misfired (late), skipped");
+					return nextFireTime;
+				}
+				pending = true;
+			}
+			if (!scriptManager.isScheduleOwner(name, schedule.group)) {
+				pending = false;
+				return nextFireTime;
+			}
+			if (isRunning()) {
+				if (misfire == MisfireEnum.skip) {
+					pending = false;
+					LOGGER.warning(() -> "Schedule " + name + " misfired (still running), skipped");
+				}
+				return nextFireTime;
+			}
+			try {
+				lastRunId = scriptManager.runAsync(schedule.script, schedule.variables, schedule.getPriority()).uuid;
+				pending = false;
+			} catch (ServerException e) {
+				LOGGER.log(Level.WARNING, e, () -> "Schedule " + name + " misfired: " + e.getMessage());
+				// Only a full queue is worth a retry
+				if (misfire == MisfireEnum.skip ||
+						e.getStatusCode() != Response.Status.TOO_MANY_REQUESTS.getStatusCode())
+					pending = false;
+			}
+			return nextFireTime;
+		}
+
+		private boolean isRunning() {
+			if (lastRunId == null)
+				return false;
+			final RunThreadAbstract<?> runThread = scriptManager.getRunThread(lastRunId);
+			return runThread != null && !runThread.isFinished();
+		}
+	}
+}
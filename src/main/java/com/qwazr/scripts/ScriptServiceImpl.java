@@ -17,21 +17,23 @@ package com.qwazr.scripts;
 
 import com.qwazr.server.AbstractServiceImpl;
 import com.qwazr.server.ServerException;
-import com.qwazr.utils.IOUtils;
 import com.qwazr.utils.LoggerUtils;
 
 import javax.ws.rs.core.Response.Status;
+import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 class ScriptServiceImpl extends AbstractServiceImpl implements ScriptServiceInterface {
 
 	private static final Logger LOGGER = LoggerUtils.getLogger(ScriptServiceImpl.class);
 
+	private static final long DEFAULT_WAIT_TIMEOUT = 30_000;
+	private static final long MAX_WAIT_TIMEOUT = 5 * 60_000;
+
 	private final ScriptManager scriptManager;
 
 	ScriptServiceImpl(final ScriptManager scriptManager) {
@@ -39,15 +41,44 @@ class ScriptServiceImpl extends AbstractServiceImpl implements ScriptServiceInte
 	}
 
 	@Override
-	public List<ScriptRunStatus<?>> runScript(final String scriptPath, final String group, final TargetRuleEnum rule) {
-		return runScriptVariables(scriptPath, group, rule, null);
+	public List<ScriptRunStatus<?>> runScript(final String scriptPath, final String group, final TargetRuleEnum rule,
+			final PriorityEnum priority, final String idempotencyKey, final Long timeLimit) {
+		return runScriptVariables(scriptPath, group, rule, priority, idempotencyKey, timeLimit, null);
 	}
 
 	@Override
 	public List<ScriptRunStatus<?>> runScriptVariables(final String scriptPath, final String group,
-			final TargetRuleEnum rule, final Map<String, String> variables) {
+			final TargetRuleEnum rule, final PriorityEnum priority, final String idempotencyKey, final Long timeLimit,
+			final Map<String, String> variables) {
+		try {
+			return scriptManager.runScript(scriptPath, group, rule, priority, idempotencyKey, timeLimit, variables);
+		} catch (Exception e) {
+			throw ServerException.getJsonException(LOGGER, e);
+		}
+	}
+
+	@Override
+	public List<ScriptRunStatus<?>> runScriptBatch(final String scriptPath, final PriorityEnum priority,
+			final List<Map<String, String>> variablesList) {
 		try {
-			return Collections.singletonList(scriptManager.runAsync(scriptPath, variables));
+			return scriptManager.runBatch(scriptPath, variablesList, priority);
+		} catch (Exception e) {
+			throw ServerException.getJsonException(LOGGER, e);
+		}
+	}
+
+	@Override
+	public ScriptRunStatus<?> runScriptSync(final String scriptPath, final PriorityEnum priority, final Long timeout,
+			final Boolean stdOut) {
+		return runScriptSyncVariables(scriptPath, priority, timeout, stdOut, null);
+	}
+
+	@Override
+	public ScriptRunStatus<?> runScriptSyncVariables(final String scriptPath, final PriorityEnum priority,
+			final Long timeout, final Boolean stdOut, final Map<String, String> variables) {
+		try {
+			return scriptManager.runAndWait(scriptPath, variables, priority, getWaitTimeout(timeout),
+					stdOut != null && stdOut);
 		} catch (Exception e) {
 			throw ServerException.getJsonException(LOGGER, e);
 		}
@@ -70,26 +101,85 @@ class ScriptServiceImpl extends AbstractServiceImpl implements ScriptServiceInte
 	}
 
 	@Override
-	public InputStream getRunOut(final String runId) {
+	public ScriptRunStatus<?> cancelRun(final String runId) {
 		try {
-			return IOUtils.toInputStream(getRunThread(runId).getOut(), StandardCharsets.UTF_8);
+			return scriptManager.cancelRun(getRunThread(runId));
 		} catch (ServerException e) {
+			throw ServerException.getJsonException(LOGGER, e);
+		}
+	}
+
+	private static long getWaitTimeout(final Long timeout) {
+		return timeout == null ? DEFAULT_WAIT_TIMEOUT : Math.max(0, Math.min(timeout, MAX_WAIT_TIMEOUT));
+	}
+
+	@Override
+	public ScriptRunStatus<?> waitRunStatus(final String runId, final ScriptRunStatus.ScriptState state,
+			final Long timeout) {
+		try {
+			return getRunThread(runId).waitStatus(state, getWaitTimeout(timeout));
+		} catch (ServerException | InterruptedException e) {
+			throw ServerException.getJsonException(LOGGER, e);
+		}
+	}
+
+	@Override
+	public ScriptRunEvents getRunEvents(final Long since, final Long timeout) {
+		try {
+			return scriptManager.getRunEvents(since == null ? 0 : since, getWaitTimeout(timeout));
+		} catch (InterruptedException e) {
+			throw ServerException.getJsonException(LOGGER, e);
+		}
+	}
+
+	private static InputStream getOutput(final OutputBuffer outputBuffer, final Long offset, final Boolean follow)
+			throws IOException {
+		final long position = offset == null ? 0 : offset;
+		return follow != null && follow ? outputBuffer.follow(position) : outputBuffer.getInputStream(position);
+	}
+
+	@Override
+	public InputStream getRunOut(final String runId, final Long offset, final Boolean follow) {
+		try {
+			return getOutput(getRunThread(runId).outputBuffer, offset, follow);
+		} catch (ServerException | IOException e) {
 			throw ServerException.getTextException(LOGGER, e);
 		}
 	}
 
 	@Override
-	public InputStream getRunErr(final String runId) {
+	public InputStream getRunErr(final String runId, final Long offset, final Boolean follow) {
 		try {
-			return IOUtils.toInputStream(getRunThread(runId).getErr(), StandardCharsets.UTF_8);
-		} catch (ServerException e) {
+			return getOutput(getRunThread(runId).errorBuffer, offset, follow);
+		} catch (ServerException | IOException e) {
 			throw ServerException.getTextException(LOGGER, e);
 		}
 	}
 
 	@Override
-	public Map<String, ScriptRunStatus<?>> getRunsStatus() {
-		return scriptManager.getRunsStatus();
+	public Map<String, ScriptRunStatus<?>> getRunsStatus(final Long since,
+			final Set<ScriptRunStatus.ScriptState> states, final String name) {
+		return scriptManager.getRunsStatus(since, states, name);
+	}
+
+	@Override
+	public ScriptMetrics getMetrics() {
+		return scriptManager.getMetrics();
+	}
+
+	@Override
+	public String getMetricsText() {
+		return scriptManager.getMetrics().toPrometheus();
+	}
+
+	@Override
+	public Map<String, ScriptMetrics.Script> getTopScripts(final CostEnum cost, final Integer limit) {
+		return scriptManager.getMetrics().getTop(cost, limit == null ? DEFAULT_TOP_LIMIT : limit);
+	}
+
+	@Override
+	public ScriptLoad getLoad() {
+		return scriptManager.getLoad();
 	}
 
 	@Override
@@ -21,6 +21,7 @@ import org.apache.commons.lang3.NotImplementedException;
 
 import javax.annotation.security.RolesAllowed;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
@@ -31,6 +32,7 @@ import javax.ws.rs.core.MediaType;
 import java.io.InputStream;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 @RolesAllowed(ScriptServiceInterface.SERVICE_NAME)
 @Path("/" + ScriptServiceInterface.SERVICE_NAME)
@@ -38,38 +40,241 @@ public interface ScriptServiceInterface extends ServiceInterface {
 
 	String SERVICE_NAME = "scripts";
 
+	String PROMETHEUS_TEXT = "text/plain; version=0.0.4; charset=utf-8";
+
+	int DEFAULT_TOP_LIMIT = 10;
+
+	/**
+	 * Submit a run of the script.
+	 *
+	 * @param scriptPath     the path of the script
+	 * @param group          the cluster group of the target nodes
+	 * @param rule           how the target nodes are chosen
+	 * @param priority       the priority of the run
+	 * @param idempotencyKey if a run of the script submitted with this key is still retained by the target node, its
+	 *                       status is returned and no new run is started
+	 * @param timeLimit      the maximum execution time in milliseconds. The run is stopped beyond and ends with the
+	 *                       timeout state. A lower limit of the script or of the server still applies.
+	 * @return the status of the runs
+	 */
 	@GET
 	@Path("/run/{script_path : .+}")
 	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
 	List<ScriptRunStatus<?>> runScript(@PathParam("script_path") String scriptPath, @QueryParam("group") String group,
-			@QueryParam("rule") TargetRuleEnum rule);
+			@QueryParam("rule") TargetRuleEnum rule, @QueryParam("priority") PriorityEnum priority,
+			@QueryParam("idempotency_key") String idempotencyKey, @QueryParam("time_limit") Long timeLimit);
+
+	default List<ScriptRunStatus<?>> runScript(String scriptPath, String group, TargetRuleEnum rule,
+			PriorityEnum priority, String idempotencyKey) {
+		return runScript(scriptPath, group, rule, priority, idempotencyKey, null);
+	}
+
+	default List<ScriptRunStatus<?>> runScript(String scriptPath, String group, TargetRuleEnum rule,
+			PriorityEnum priority) {
+		return runScript(scriptPath, group, rule, priority, null, null);
+	}
+
+	default List<ScriptRunStatus<?>> runScript(String scriptPath, String group, TargetRuleEnum rule) {
+		return runScript(scriptPath, group, rule, null, null, null);
+	}
 
 	@POST
 	@Path("/run/{script_path : .+}")
 	@Consumes(ServiceInterface.APPLICATION_JSON_UTF8)
 	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
 	List<ScriptRunStatus<?>> runScriptVariables(@PathParam("script_path") String scriptPath,
-			@QueryParam("group") String group, @QueryParam("rule") TargetRuleEnum rule, Map<String, String> variables);
+			@QueryParam("group") String group, @QueryParam("rule") TargetRuleEnum rule,
+			@QueryParam("priority") PriorityEnum priority, @QueryParam("idempotency_key") String idempotencyKey,
+			@QueryParam("time_limit") Long timeLimit, Map<String, String> variables);
+
+	default List<ScriptRunStatus<?>> runScriptVariables(String scriptPath, String group, TargetRuleEnum rule,
+			PriorityEnum priority, String idempotencyKey, Map<String, String> variables) {
+		return runScriptVariables(scriptPath, group, rule, priority, idempotencyKey, null, variables);
+	}
+
+	default List<ScriptRunStatus<?>> runScriptVariables(String scriptPath, String group, TargetRuleEnum rule,
+			PriorityEnum priority, Map<String, String> variables) {
+		return runScriptVariables(scriptPath, group, rule, priority, null, null, variables);
+	}
+
+	default List<ScriptRunStatus<?>> runScriptVariables(String scriptPath, String group, TargetRuleEnum rule,
+			Map<String, String> variables) {
+		return runScriptVariables(scriptPath, group, rule, null, null, null, variables);
+	}
 
+	/**
+	 * Submit one run of the script for each variables map.
+	 * The batch is rejected (429) if the queue cannot take all the runs.
+	 *
+	 * @param scriptPath    the path of the script
+	 * @param priority      the priority of the runs
+	 * @param variablesList one variables map per run
+	 * @return the status of each run, in the same order than the variables
+	 */
+	@POST
+	@Path("/batch/{script_path : .+}")
+	@Consumes(ServiceInterface.APPLICATION_JSON_UTF8)
+	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
+	List<ScriptRunStatus<?>> runScriptBatch(@PathParam("script_path") String scriptPath,
+			@QueryParam("priority") PriorityEnum priority, List<Map<String, String>> variablesList);
+
+	/**
+	 * Run the script and wait for its termination.
+	 *
+	 * @param scriptPath the path of the script
+	 * @param priority   the priority of the run
+	 * @param timeout    the maximum time to wait in milliseconds
+	 * @param stdOut     if true the status includes the standard output
+	 * @return the final status, or the current status if the timeout has been reached
+	 */
+	@GET
+	@Path("/sync/{script_path : .+}")
+	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
+	ScriptRunStatus<?> runScriptSync(@PathParam("script_path") String scriptPath,
+			@QueryParam("priority") PriorityEnum priority, @QueryParam("timeout") Long timeout,
+			@QueryParam("out") Boolean stdOut);
+
+	@POST
+	@Path("/sync/{script_path : .+}")
+	@Consumes(ServiceInterface.APPLICATION_JSON_UTF8)
+	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
+	ScriptRunStatus<?> runScriptSyncVariables(@PathParam("script_path") String scriptPath,
+			@QueryParam("priority") PriorityEnum priority, @QueryParam("timeout") Long timeout,
+			@QueryParam("out") Boolean stdOut, Map<String, String> variables);
+
+	/**
+	 * The status of the runs matching all the given filters.
+	 *
+	 * @param since  only the runs updated at this time (epoch ms) or later
+	 * @param states only the runs in one of these states
+	 * @param name   only the runs of this script
+	 * @return the status of the matching runs by run id
+	 */
 	@GET
 	@Path("/status")
 	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
-	Map<String, ScriptRunStatus<?>> getRunsStatus();
+	Map<String, ScriptRunStatus<?>> getRunsStatus(@QueryParam("since") Long since,
+			@QueryParam("state") Set<ScriptRunStatus.ScriptState> states, @QueryParam("name") String name);
+
+	default Map<String, ScriptRunStatus<?>> getRunsStatus() {
+		return getRunsStatus(null, null, null);
+	}
+
+	/**
+	 * @return the metrics of the node (merged over the nodes for a multi client)
+	 */
+	@GET
+	@Path("/metrics")
+	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
+	ScriptMetrics getMetrics();
+
+	/**
+	 * @return the metrics in the Prometheus text format
+	 */
+	@GET
+	@Path("/metrics")
+	@Produces(PROMETHEUS_TEXT)
+	String getMetricsText();
+
+	/**
+	 * The most expensive scripts since the start of the node (over all the nodes for a multi client).
+	 *
+	 * @param cost  the cost used to sort the scripts (cpu by default)
+	 * @param limit the maximum number of scripts (10 by default)
+	 * @return the metrics of the most expensive scripts by script name, the most expensive first
+	 */
+	@GET
+	@Path("/top")
+	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
+	Map<String, ScriptMetrics.Script> getTopScripts(@QueryParam("by") CostEnum cost,
+			@QueryParam("limit") Integer limit);
+
+	/**
+	 * @return the number of running and queued runs (summed over the nodes for a multi client)
+	 */
+	@GET
+	@Path("/load")
+	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
+	ScriptLoad getLoad();
 
 	@GET
 	@Path("/status/{run_id}")
 	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
 	ScriptRunStatus<?> getRunStatus(@PathParam("run_id") String run_id);
 
+	/**
+	 * Stop a run. A queued run leaves the queue, a running one is interrupted. In both cases the run ends with the
+	 * cancelled state. Cancelling a finished run has no effect.
+	 *
+	 * @param run_id the UUID of the run
+	 * @return the current status of the run
+	 */
+	@DELETE
+	@Path("/status/{run_id}")
+	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
+	ScriptRunStatus<?> cancelRun(@PathParam("run_id") String run_id);
+
+	/**
+	 * Long polling: wait until the state of the run changes.
+	 *
+	 * @param run_id  the UUID of the run
+	 * @param state   the state known by the caller. If null, wait until the run is finished.
+	 * @param timeout the maximum time to wait in milliseconds
+	 * @return the current status of the run
+	 */
+	@GET
+	@Path("/status/{run_id}/wait")
+	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
+	ScriptRunStatus<?> waitRunStatus(@PathParam("run_id") String run_id,
+			@QueryParam("state") ScriptRunStatus.ScriptState state, @QueryParam("timeout") Long timeout);
+
+	/**
+	 * Long polling: returns the runs updated since the given time. If there is none, wait until a run is updated.
+	 *
+	 * @param since   the time (in ms) returned as "next" by the previous call
+	 * @param timeout the maximum time to wait in milliseconds
+	 * @return the updated runs and the time to pass to the next call
+	 */
+	@GET
+	@Path("/events")
+	@Produces(ServiceInterface.APPLICATION_JSON_UTF8)
+	ScriptRunEvents getRunEvents(@QueryParam("since") Long since, @QueryParam("timeout") Long timeout);
+
+	/**
+	 * Returns the standard output of a run.
+	 *
+	 * @param run_id the UUID of the run
+	 * @param offset the position (in bytes) of the first byte to return. A negative value is relative to the end.
+	 * @param follow if true the stream follows the output until the end of the run
+	 * @return the content of the standard output
+	 */
 	@GET
 	@Path("/status/{run_id}/out")
 	@Produces(MediaType.TEXT_PLAIN)
-	InputStream getRunOut(@PathParam("run_id") String run_id);
+	InputStream getRunOut(@PathParam("run_id") String run_id, @QueryParam("offset") Long offset,
+			@QueryParam("follow") Boolean follow);
+
+	default InputStream getRunOut(String run_id) {
+		return getRunOut(run_id, null, null);
+	}
 
+	/**
+	 * Returns the error output of a run.
+	 *
+	 * @param run_id the UUID of the run
+	 * @param offset the position (in bytes) of the first byte to return. A negative value is relative to the end.
+	 * @param follow if true the stream follows the output until the end of the run
+	 * @return the content of the error output
+	 */
 	@GET
 	@Path("/status/{run_id}/err")
 	@Produces(MediaType.TEXT_PLAIN)
-	InputStream getRunErr(@PathParam("run_id") String run_id);
+	InputStream getRunErr(@PathParam("run_id") String run_id, @QueryParam("offset") Long offset,
+			@QueryParam("follow") Boolean follow);
+
+	default InputStream getRunErr(String run_id) {
+		return getRunErr(run_id, null, null);
+	}
 
 	default RunThreadAbstract<?> runSync(String scriptPath, Map<String, ?> objects) throws ServerException {
 		throw new NotImplementedException("runSync");
@@ -23,47 +23,112 @@ import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MediaType;
+import java.io.Closeable;
 import java.io.InputStream;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
-public class ScriptSingleClient extends JsonClient implements ScriptServiceInterface {
+public class ScriptSingleClient extends JsonClient implements ScriptServiceInterface, Closeable {
+
+	final String serverAddress;
 
 	private final WebTarget runTarget;
+	private final WebTarget syncTarget;
+	private final WebTarget batchTarget;
 	private final WebTarget statusTarget;
+	private final WebTarget eventsTarget;
+	private final WebTarget loadTarget;
+	private final WebTarget metricsTarget;
+	private final WebTarget topTarget;
 
 	public ScriptSingleClient(final RemoteService remote) {
 		super(remote);
+		serverAddress = remote.serverAddress;
 		final WebTarget scriptsTarget = client.target(remote.serverAddress).path(ScriptServiceInterface.SERVICE_NAME);
 		runTarget = scriptsTarget.path("run");
+		syncTarget = scriptsTarget.path("sync");
+		batchTarget = scriptsTarget.path("batch");
 		statusTarget = scriptsTarget.path("status");
+		eventsTarget = scriptsTarget.path("events");
+		loadTarget = scriptsTarget.path("load");
+		metricsTarget = scriptsTarget.path("metrics");
+		topTarget = scriptsTarget.path("top");
 	}
 
 	private final static GenericType<List<ScriptRunStatus<?>>> listRunStatusType = new GenericType<>() {
 	};
 
-	private WebTarget getRunTarget(final String scriptPath, final String group, final TargetRuleEnum rule) {
+	private WebTarget getRunTarget(final String scriptPath, final String group, final TargetRuleEnum rule,
+			final PriorityEnum priority, final String idempotencyKey, final Long timeLimit) {
 		WebTarget target = runTarget.path(scriptPath);
 		if (group != null)
 			target = target.queryParam("group", group);
 		if (rule != null)
 			target = target.queryParam("rule", rule.name());
+		if (priority != null)
+			target = target.queryParam("priority", priority.name());
+		if (idempotencyKey != null)
+			target = target.queryParam("idempotency_key", idempotencyKey);
+		if (timeLimit != null)
+			target = target.queryParam("time_limit", timeLimit);
 		return target;
 	}
 
 	@Override
-	public List<ScriptRunStatus<?>> runScript(final String scriptPath, final String group, final TargetRuleEnum rule) {
-		return getRunTarget(scriptPath, group, rule).request(MediaType.APPLICATION_JSON).get(listRunStatusType);
+	public List<ScriptRunStatus<?>> runScript(final String scriptPath, final String group, final TargetRuleEnum rule,
+			final PriorityEnum priority, final String idempotencyKey, final Long timeLimit) {
+		return getRunTarget(scriptPath, group, rule, priority, idempotencyKey, timeLimit).request(
+				MediaType.APPLICATION_JSON).get(listRunStatusType);
 	}
 
 	@Override
 	public List<ScriptRunStatus<?>> runScriptVariables(final String scriptPath, final String group,
-			final TargetRuleEnum rule, final Map<String, String> variables) {
+			final TargetRuleEnum rule, final PriorityEnum priority, final String idempotencyKey, final Long timeLimit,
+			final Map<String, String> variables) {
 		if (variables == null || variables.isEmpty())
-			return runScript(scriptPath, group, rule);
-		return getRunTarget(scriptPath, group, rule).request(MediaType.APPLICATION_JSON)
-				.post(Entity.json(variables), listRunStatusType);
+			return runScript(scriptPath, group, rule, priority, idempotencyKey, timeLimit);
+		return getRunTarget(scriptPath, group, rule, priority, idempotencyKey, timeLimit).request(
+				MediaType.APPLICATION_JSON).post(Entity.json(variables), listRunStatusType);
+	}
+
+	@Override
+	public List<ScriptRunStatus<?>> runScriptBatch(final String scriptPath, final PriorityEnum priority,
+			final List<Map<String, String>> variablesList) {
+		WebTarget target = batchTarget.path(scriptPath);
+		if (priority != null)
+			target = target.queryParam("priority", priority.name());
+		return target.request(MediaType.APPLICATION_JSON).post(Entity.json(variablesList), listRunStatusType);
+	}
+
+	private WebTarget getSyncTarget(final String scriptPath, final PriorityEnum priority, final Long timeout,
+			final Boolean stdOut) {
+		WebTarget target = syncTarget.path(scriptPath);
+		if (priority != null)
+			target = target.queryParam("priority", priority.name());
+		if (timeout != null)
+			target = target.queryParam("timeout", timeout);
+		if (stdOut != null)
+			target = target.queryParam("out", stdOut);
+		return target;
+	}
+
+	@Override
+	public ScriptRunStatus<?> runScriptSync(final String scriptPath, final PriorityEnum priority, final Long timeout,
+			final Boolean stdOut) {
+		return getSyncTarget(scriptPath, priority, timeout, stdOut).request(MediaType.APPLICATION_JSON)
+				.get(ScriptRunStatus.class);
+	}
+
+	@Override
+	public ScriptRunStatus<?> runScriptSyncVariables(final String scriptPath, final PriorityEnum priority,
+			final Long timeout, final Boolean stdOut, final Map<String, String> variables) {
+		if (variables == null || variables.isEmpty())
+			return runScriptSync(scriptPath, priority, timeout, stdOut);
+		return getSyncTarget(scriptPath, priority, timeout, stdOut).request(MediaType.APPLICATION_JSON)
+				.post(Entity.json(variables), ScriptRunStatus.class);
 	}
 
 	@Override
@@ -71,23 +136,102 @@ public class ScriptSingleClient extends JsonClient implements ScriptServiceInter
 		return statusTarget.path(runId).request(MediaType.APPLICATION_JSON).get(ScriptRunStatus.class);
 	}
 
+	@Override
+	public ScriptRunStatus<?> cancelRun(final String runId) {
+		return statusTarget.path(runId).request(MediaType.APPLICATION_JSON).delete(ScriptRunStatus.class);
+	}
+
+	@Override
+	public ScriptRunStatus<?> waitRunStatus(final String runId, final ScriptRunStatus.ScriptState state,
+			final Long timeout) {
+		WebTarget target = statusTarget.path(runId).path("wait");
+		if (state != null)
+			target = target.queryParam("state", state.name());
+		if (timeout != null)
+			target = target.queryParam("timeout", timeout);
+		return target.request(MediaType.APPLICATION_JSON).get(ScriptRunStatus.class);
+	}
+
+	@Override
+	public ScriptRunEvents getRunEvents(final Long since, final Long timeout) {
+		WebTarget target = eventsTarget;
+		if (since != null)
+			target = target.queryParam("since", since);
+		if (timeout != null)
+			target = target.queryParam("timeout", timeout);
+		return target.request(MediaType.APPLICATION_JSON).get(ScriptRunEvents.class);
+	}
+
 	private final static GenericType<TreeMap<String, ScriptRunStatus<?>>> mapRunStatusType = new GenericType<>() {
 	};
 
 	@Override
-	public Map<String, ScriptRunStatus<?>> getRunsStatus() {
-		return statusTarget.request(MediaType.APPLICATION_JSON).get(mapRunStatusType);
+	public Map<String, ScriptRunStatus<?>> getRunsStatus(final Long since,
+			final Set<ScriptRunStatus.ScriptState> states, final String name) {
+		WebTarget target = statusTarget;
+		if (since != null)
+			target = target.queryParam("since", since);
+		if (states != null && !states.isEmpty())
+			target = target.queryParam("state", states.toArray());
+		if (name != null)
+			target = target.queryParam("name", name);
+		return target.request(MediaType.APPLICATION_JSON).get(mapRunStatusType);
+	}
+
+	private InputStream getOutput(final String runId, final String output, final Long offset,
+			final Boolean follow) {
+		WebTarget target = statusTarget.path(runId).path(output);
+		if (offset != null)
+			target = target.queryParam("offset", offset);
+		if (follow != null)
+			target = target.queryParam("follow", follow);
+		return new AutoCloseInputStream(target.request(MediaType.TEXT_PLAIN).get(InputStream.class));
+	}
+
+	@Override
+	public InputStream getRunOut(final String runId, final Long offset, final Boolean follow) {
+		return getOutput(runId, "out", offset, follow);
+	}
+
+	@Override
+	public InputStream getRunErr(final String runId, final Long offset, final Boolean follow) {
+		return getOutput(runId, "err", offset, follow);
+	}
+
+	@Override
+	public ScriptMetrics getMetrics() {
+		return metricsTarget.request(MediaType.APPLICATION_JSON).get(ScriptMetrics.class);
+	}
+
+	@Override
+	public String getMetricsText() {
+		return metricsTarget.request(MediaType.TEXT_PLAIN).get(String.class);
+	}
+
+	private final static GenericType<LinkedHashMap<String, ScriptMetrics.Script>> topScriptsType =
+			new GenericType<>() {
+			};
+
+	@Override
+	public Map<String, ScriptMetrics.Script> getTopScripts(final CostEnum cost, final Integer limit) {
+		WebTarget target = topTarget;
+		if (cost != null)
+			target = target.queryParam("by", cost.name());
+		if (limit != null)
+			target = target.queryParam("limit", limit);
+		return target.request(MediaType.APPLICATION_JSON).get(topScriptsType);
 	}
 
 	@Override
-	public InputStream getRunOut(final String runId) {
-		return new AutoCloseInputStream(
-				statusTarget.path(runId).path("out").request(MediaType.TEXT_PLAIN).get(InputStream.class));
+	public ScriptLoad getLoad() {
+		return loadTarget.request(MediaType.APPLICATION_JSON).get(ScriptLoad.class);
 	}
 
+	/**
+	 * Release the connections of the underlying JAX-RS client
+	 */
 	@Override
-	public InputStream getRunErr(final String runId) {
-		return new AutoCloseInputStream(
-				statusTarget.path(runId).path("err").request(MediaType.TEXT_PLAIN).get(InputStream.class));
+	public void close() {
+		client.close();
 	}
 }
@@ -15,6 +15,9 @@
  */
 package com.qwazr.scripts;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 import com.qwazr.utils.ObjectMappers;
 import org.graalvm.polyglot.Value;
 
@@ -23,52 +26,145 @@ import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class ScriptUtils {
 
+	/**
+	 * The value is written as JSON tokens in a buffer, which is read by Jackson: no intermediate Java objects and no
+	 * JSON text are built.
+	 */
 	public static <T> T fromJson(final Value value, final Class<T> valueClass) throws IOException {
 		if (value == null)
 			return null;
-		final Object object = buildJson(value);
-		return ObjectMappers.JSON.readValue(ObjectMappers.JSON.writeValueAsString(object), valueClass);
+		final TokenBuffer tokenBuffer = new TokenBuffer(ObjectMappers.JSON, false);
+		writeJson(value, tokenBuffer);
+		try (final JsonParser parser = tokenBuffer.asParser()) {
+			return ObjectMappers.JSON.readValue(parser, valueClass);
+		}
+	}
+
+	/**
+	 * Stream the value as JSON to the given generator. The arrays are written element by element.
+	 */
+	public static void writeJson(final Value value, final JsonGenerator generator) throws IOException {
+		if (value.isNull())
+			generator.writeNull();
+		else if (value.isBoolean())
+			generator.writeBoolean(value.asBoolean());
+		else if (value.isNumber()) {
+			if (value.fitsInInt())
+				generator.writeNumber(value.asInt());
+			else if (value.fitsInLong())
+				generator.writeNumber(value.asLong());
+			else
+				generator.writeNumber(value.asDouble());
+		} else if (value.isString())
+			generator.writeString(value.asString());
+		else if (value.isHostObject())
+			generator.writeObject(value.asHostObject());
+		else if (value.hasArrayElements()) {
+			final long size = value.getArraySize();
+			generator.writeStartArray();
+			for (long i = 0; i < size; i++)
+				writeJson(value.getArrayElement(i), generator);
+			generator.writeEndArray();
+		} else if (value.hasMembers()) {
+			generator.writeStartObject();
+			for (final String key : value.getMemberKeys()) {
+				generator.writeFieldName(key);
+				writeJson(value.getMember(key), generator);
+			}
+			generator.writeEndObject();
+		} else
+			generator.writeNull();
+	}
+
+	/**
+	 * Convert the value to plain Java objects: Map, List, String, Boolean, Integer, Long or Double.
+	 * The integers keep their exact value. An array of numbers is converted to a long[] (if every number is an
+	 * integer) or to a double[]. Any other array is converted to a List, including an array mixing decimals with
+	 * integers which a double cannot hold exactly (beyond 2^53).
+	 * Callers which expected a List for every array must also handle the long[] and double[] types.
+	 *
+	 * @return the converted value
+	 */
+	public static Object toJava(final Value value) {
+		return buildJson(value);
 	}
 
 	private static Object buildJson(final Value value) {
-		if (value.isBoolean())
-			return value.asBoolean();
 		if (value.isNull())
 			return null;
+		if (value.isBoolean())
+			return value.asBoolean();
 		if (value.isNumber()) {
-			if (value.fitsInByte())
-				return value.asByte();
-			if (value.fitsInShort())
-				return value.asShort();
 			if (value.fitsInInt())
 				return value.asInt();
-			if (value.fitsInFloat())
-				return value.asFloat();
 			if (value.fitsInLong())
 				return value.asLong();
-			if (value.fitsInDouble())
-				return value.asDouble();
 			return value.asDouble();
 		}
 		if (value.isString())
 			return value.asString();
-		if (value.hasArrayElements()) {
-			final List<Object> list = new ArrayList<>();
-			for (final String key : value.getMemberKeys()) {
-				list.add(buildJson(value.getMember(key)));
-			}
-			return list;
-		}
+		if (value.hasArrayElements())
+			return buildArray(value);
 		if (value.hasMembers()) {
-			final Map<String, Object> map = new LinkedHashMap<>();
-			for (final String key : value.getMemberKeys()) {
+			final Set<String> keys = value.getMemberKeys();
+			final Map<String, Object> map = new LinkedHashMap<>((int) (keys.size() / 0.75f) + 1);
+			for (final String key : keys)
 				map.put(key, buildJson(value.getMember(key)));
-			}
 			return map;
 		}
 		return null;
 	}
+
+	private static Object buildArray(final Value value) {
+		final int size = Math.toIntExact(value.getArraySize());
+		if (size > 0) {
+			final Value first = value.getArrayElement(0);
+			if (first.isNumber()) {
+				final Object numbers = buildNumberArray(value, size, first);
+				if (numbers != null)
+					return numbers;
+			}
+		}
+		final List<Object> list = new ArrayList<>(size);
+		for (int i = 0; i < size; i++)
+			list.add(buildJson(value.getArrayElement(i)));
+		return list;
+	}
+
+	/**
+	 * @return a long[] while every element is an integer, a double[] if some are not, or null if some element is not
+	 * a number or if some integer cannot be represented exactly by a double
+	 */
+	private static Object buildNumberArray(final Value value, final int size, final Value first) {
+		final long[] longs = new long[size];
+		double[] doubles = null;
+		for (int i = 0; i < size; i++) {
+			final Value element = i == 0 ? first : value.getArrayElement(i);
+			if (!element.isNumber())
+				return null;
+			if (doubles == null) {
+				if (element.fitsInLong()) {
+					longs[i] = element.asLong();
+					continue;
+				}
+				doubles = new double[size];
+				for (int j = 0; j < i; j++) {
+					if (!isExactDouble(longs[j]))
+						return null;
+					doubles[j] = longs[j];
+				}
+			} else if (element.fitsInLong() && !isExactDouble(element.asLong()))
+				return null;
+			doubles[i] = element.asDouble();
+		}
+		return doubles != null ? doubles : longs;
+	}
+
+	private static boolean isExactDouble(final long number) {
+		return (long) (double) number == number;
+	}
 }
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import com.qwazr.utils.StringUtils;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.function.Function;
+
+/**
+ * Server wide settings of the scripts service.
+ * Each setting can be given as a system property or as an environment variable (QWAZR_SCRIPTS_*).
+ */
+public class ScriptsConfiguration {
+
+	public static final String QWAZR_SCRIPTS_CACHE_SIZE = "QWAZR_SCRIPTS_CACHE_SIZE";
+	public static final String QWAZR_SCRIPTS_JS_POOL_SIZE = "QWAZR_SCRIPTS_JS_POOL_SIZE";
+	public static final String QWAZR_SCRIPTS_JS_RUNNER = "QWAZR_SCRIPTS_JS_RUNNER";
+	public static final String QWAZR_SCRIPTS_EXECUTOR = "QWAZR_SCRIPTS_EXECUTOR";
+	public static final String QWAZR_SCRIPTS_MAX_CONCURRENCY = "QWAZR_SCRIPTS_MAX_CONCURRENCY";
+	public static final String QWAZR_SCRIPTS_MAX_QUEUE_SIZE = "QWAZR_SCRIPTS_MAX_QUEUE_SIZE";
+	public static final String QWAZR_SCRIPTS_RETENTION_TIME = "QWAZR_SCRIPTS_RETENTION_TIME";
+	public static final String QWAZR_SCRIPTS_RETENTION_COUNT = "QWAZR_SCRIPTS_RETENTION_COUNT";
+	public static final String QWAZR_SCRIPTS_RETENTION_MEMORY = "QWAZR_SCRIPTS_RETENTION_MEMORY";
+	public static final String QWAZR_SCRIPTS_OUTPUT_MEMORY_SIZE = "QWAZR_SCRIPTS_OUTPUT_MEMORY_SIZE";
+	public static final String QWAZR_SCRIPTS_OUTPUT_MAX_SIZE = "QWAZR_SCRIPTS_OUTPUT_MAX_SIZE";
+	public static final String QWAZR_SCRIPTS_OUTPUT_DIRECTORY = "QWAZR_SCRIPTS_OUTPUT_DIRECTORY";
+	public static final String QWAZR_SCRIPTS_SCHEDULES_FILE = "QWAZR_SCRIPTS_SCHEDULES_FILE";
+	public static final String QWAZR_SCRIPTS_TIME_LIMIT = "QWAZR_SCRIPTS_TIME_LIMIT";
+
+	public static final int DEFAULT_SCRIPT_CACHE_SIZE = 200;
+	public static final int DEFAULT_MAX_CONCURRENCY = 64;
+	public static final int DEFAULT_MAX_QUEUE_SIZE = 10_000;
+	public static final long DEFAULT_RETENTION_TIME = 2 * 60 * 1000;
+	public static final int DEFAULT_OUTPUT_MEMORY_SIZE = 64 * 1024;
+	public static final long DEFAULT_OUTPUT_MAX_SIZE = 64 * 1024 * 1024;
+	public static final String DEFAULT_OUTPUT_DIRECTORY_NAME = ".scripts-output";
+	public static final String DEFAULT_SCHEDULES_FILE_NAME = "scripts-schedules.json";
+
+	public static final ScriptsConfiguration DEFAULT = of().build();
+
+	public enum JsRunner {
+
+		/**
+		 * JSR-223 ScriptEngine (javax.script)
+		 */
+		scriptengine,
+
+		/**
+		 * Native GraalVM polyglot Context
+		 */
+		polyglot
+	}
+
+	public enum ExecutorMode {
+
+		/**
+		 * The runs are executed by the thread pool given to the ScriptManager
+		 */
+		platform,
+
+		/**
+		 * Each run gets its own virtual thread (requires a JVM supporting virtual threads)
+		 */
+		virtual
+	}
+
+	public final int scriptCacheSize;
+	public final int jsEnginePoolSize;
+	public final JsRunner jsRunner;
+	public final ExecutorMode executorMode;
+	public final int maxConcurrency;
+	public final int maxQueueSize;
+
+	/**
+	 * How long (in milliseconds) a finished run is kept
+	 */
+	public final long retentionTime;
+
+	/**
+	 * How many finished runs are kept per script (0 means no limit)
+	 */
+	public final int retentionCount;
+
+	/**
+	 * The memory budget (in bytes) of all the finished runs (0 means no limit)
+	 */
+	public final long retentionMemory;
+
+	/**
+	 * How many bytes of the standard and the error outputs of a run are kept in memory
+	 */
+	public final int outputMemorySize;
+
+	/**
+	 * The maximum number of bytes captured for the standard and the error outputs of a run
+	 */
+	public final long outputMaxSize;
+
+	/**
+	 * Where the outputs larger than the memory size are spilled (by default in the data directory)
+	 */
+	public final Path outputDirectory;
+
+	/**
+	 * The file of the schedules fired by this node (by default in the data directory)
+	 */
+	public final Path schedulesFile;
+
+	/**
+	 * The default maximum execution time (in milliseconds) of a run (0 means no limit)
+	 */
+	public final long timeLimit;
+
+	private ScriptsConfiguration(final Builder builder) {
+		this.scriptCacheSize = builder.scriptCacheSize;
+		this.jsEnginePoolSize = builder.jsEnginePoolSize;
+		this.jsRunner = builder.jsRunner;
+		this.executorMode = builder.executorMode;
+		this.maxConcurrency = builder.maxConcurrency;
+		this.maxQueueSize = builder.maxQueueSize;
+		this.retentionTime = builder.retentionTime;
+		this.retentionCount = builder.retentionCount;
+		this.retentionMemory = builder.retentionMemory;
+		this.outputMemorySize = builder.outputMemorySize;
+		this.outputMaxSize = builder.outputMaxSize;
+		this.outputDirectory = builder.outputDirectory;
+		this.schedulesFile = builder.schedulesFile;
+		this.timeLimit = builder.timeLimit;
+	}
+
+	public static Builder of() {
+		return new Builder();
+	}
+
+	public static ScriptsConfiguration fromEnvironment() {
+		return of().load(ScriptsConfiguration::getProperty).build();
+	}
+
+	private static String getProperty(final String key) {
+		final String value = System.getProperty(key);
+		return value != null ? value : System.getenv(key);
+	}
+
+	public static class Builder {
+
+		private int scriptCacheSize;
+		private int jsEnginePoolSize;
+		private JsRunner jsRunner;
+		private ExecutorMode executorMode;
+		private int maxConcurrency;
+		private int maxQueueSize;
+		private long retentionTime;
+		private int retentionCount;
+		private long retentionMemory;
+		private int outputMemorySize;
+		private long outputMaxSize;
+		private Path outputDirectory;
+		private Path schedulesFile;
+		private long timeLimit;
+
+		private Builder() {
+			scriptCacheSize = DEFAULT_SCRIPT_CACHE_SIZE;
+			jsEnginePoolSize = Runtime.getRuntime().availableProcessors();
+			jsRunner = JsRunner.scriptengine;
+			executorMode = ExecutorMode.platform;
+			maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+			maxQueueSize = DEFAULT_MAX_QUEUE_SIZE;
+			retentionTime = DEFAULT_RETENTION_TIME;
+			retentionCount = 0;
+			retentionMemory = 0;
+			outputMemorySize = DEFAULT_OUTPUT_MEMORY_SIZE;
+			outputMaxSize = DEFAULT_OUTPUT_MAX_SIZE;
+			outputDirectory = null;
+			schedulesFile = null;
+			timeLimit = 0;
+		}
+
+		Builder load(final Function<String, String> properties) {
+			final String cacheSize = properties.apply(QWAZR_SCRIPTS_CACHE_SIZE);
+			if (!StringUtils.isBlank(cacheSize))
+				scriptCacheSize(Integer.parseInt(cacheSize.trim()));
+			final String poolSize = properties.apply(QWAZR_SCRIPTS_JS_POOL_SIZE);
+			if (!StringUtils.isBlank(poolSize))
+				jsEnginePoolSize(Integer.parseInt(poolSize.trim()));
+			final String runner = properties.apply(QWAZR_SCRIPTS_JS_RUNNER);
+			if (!StringUtils.isBlank(runner))
+				jsRunner(JsRunner.valueOf(runner.trim().toLowerCase()));
+			final String executor = properties.apply(QWAZR_SCRIPTS_EXECUTOR);
+			if (!StringUtils.isBlank(executor))
+				executorMode(ExecutorMode.valueOf(executor.trim().toLowerCase()));
+			final String maxConcurrency = properties.apply(QWAZR_SCRIPTS_MAX_CONCURRENCY);
+			if (!StringUtils.isBlank(maxConcurrency))
+				maxConcurrency(Integer.parseInt(maxConcurrency.trim()));
+			final String maxQueueSize = properties.apply(QWAZR_SCRIPTS_MAX_QUEUE_SIZE);
+			if (!StringUtils.isBlank(maxQueueSize))
+				maxQueueSize(Integer.parseInt(maxQueueSize.trim()));
+			final String retentionTime = properties.apply(QWAZR_SCRIPTS_RETENTION_TIME);
+			if (!StringUtils.isBlank(retentionTime))
+				retentionTime(Long.parseLong(retentionTime.trim()));
+			final String retentionCount = properties.apply(QWAZR_SCRIPTS_RETENTION_COUNT);
+			if (!StringUtils.isBlank(retentionCount))
+				retentionCount(Integer.parseInt(retentionCount.trim()));
+			final String retentionMemory = properties.apply(QWAZR_SCRIPTS_RETENTION_MEMORY);
+			if (!StringUtils.isBlank(retentionMemory))
+				retentionMemory(Long.parseLong(retentionMemory.trim()));
+			final String outputMemorySize = properties.apply(QWAZR_SCRIPTS_OUTPUT_MEMORY_SIZE);
+			if (!StringUtils.isBlank(outputMemorySize))
+				outputMemorySize(Integer.parseInt(outputMemorySize.trim()));
+			final String outputMaxSize = properties.apply(QWAZR_SCRIPTS_OUTPUT_MAX_SIZE);
+			if (!StringUtils.isBlank(outputMaxSize))
+				outputMaxSize(Long.parseLong(outputMaxSize.trim()));
+			final String outputDirectory = properties.apply(QWAZR_SCRIPTS_OUTPUT_DIRECTORY);
+			if (!StringUtils.isBlank(outputDirectory))
+				outputDirectory(Paths.get(outputDirectory.trim()));
+			final String schedulesFile = properties.apply(QWAZR_SCRIPTS_SCHEDULES_FILE);
+			if (!StringUtils.isBlank(schedulesFile))
+				schedulesFile(Paths.get(schedulesFile.trim()));
+			final String timeLimit = properties.apply(QWAZR_SCRIPTS_TIME_LIMIT);
+			if (!StringUtils.isBlank(timeLimit))
+				timeLimit(Long.parseLong(timeLimit.trim()));
+			return this;
+		}
+
+		public Builder scriptCacheSize(final int scriptCacheSize) {
+			this.scriptCacheSize = scriptCacheSize;
+			return this;
+		}
+
+		public Builder jsEnginePoolSize(final int jsEnginePoolSize) {
+			if (jsEnginePoolSize < 1)
+				throw new IllegalArgumentException("The JS engine pool size must be greater than zero");
+			this.jsEnginePoolSize = jsEnginePoolSize;
+			return this;
+		}
+
+		public Builder jsRunner(final JsRunner jsRunner) {
+			this.jsRunner = jsRunner == null ? JsRunner.scriptengine : jsRunner;
+			return this;
+		}
+
+		public Builder executorMode(final ExecutorMode executorMode) {
+			this.executorMode = executorMode == null ? ExecutorMode.platform : executorMode;
+			return this;
+		}
+
+		public Builder maxConcurrency(final int maxConcurrency) {
+			if (maxConcurrency < 1)
+				throw new IllegalArgumentException("The maximum concurrency must be greater than zero");
+			this.maxConcurrency = maxConcurrency;
+			return this;
+		}
+
+		public Builder maxQueueSize(final int maxQueueSize) {
+			if (maxQueueSize < 0)
+				throw new IllegalArgumentException("The maximum queue size cannot be negative");
+			this.maxQueueSize = maxQueueSize;
+			return this;
+		}
+
+		public Builder retentionTime(final long retentionTime) {
+			if (retentionTime < 0)
+				throw new IllegalArgumentException("The retention time cannot be negative");
+			this.retentionTime = retentionTime;
+			return this;
+		}
+
+		public Builder retentionCount(final int retentionCount) {
+			if (retentionCount < 0)
+				throw new IllegalArgumentException("The retention count cannot be negative");
+			this.retentionCount = retentionCount;
+			return this;
+		}
+
+		public Builder retentionMemory(final long retentionMemory) {
+			if (retentionMemory < 0)
+				throw new IllegalArgumentException("The retention memory cannot be negative");
+			this.retentionMemory = retentionMemory;
+			return this;
+		}
+
+		public Builder outputMemorySize(final int outputMemorySize) {
+			if (outputMemorySize < 1)
+				throw new IllegalArgumentException("The output memory size must be greater than zero");
+			this.outputMemorySize = outputMemorySize;
+			return this;
+		}
+
+		public Builder outputMaxSize(final long outputMaxSize) {
+			if (outputMaxSize < 0)
+				throw new IllegalArgumentException("The output maximum size cannot be negative");
+			this.outputMaxSize = outputMaxSize;
+			return this;
+		}
+
+		public Builder outputDirectory(final Path outputDirectory) {
+			this.outputDirectory = outputDirectory;
+			return this;
+		}
+
+		public Builder schedulesFile(final Path schedulesFile) {
+			this.schedulesFile = schedulesFile;
+			return this;
+		}
+
+		public Builder timeLimit(final long timeLimit) {
+			if (timeLimit < 0)
+				throw new IllegalArgumentException("The time limit cannot be negative");
+			this.timeLimit = timeLimit;
+			return this;
+		}
+
+		public ScriptsConfiguration build() {
+			return new ScriptsConfiguration(this);
+		}
+	}
+}
@@ -62,8 +62,10 @@ public class ScriptsServer implements BaseServer {
 		webServices.singletons(libraryService);
 
 		final ScriptManager scriptManager =
-				new ScriptManager(executorService, clusterManager, libraryService, configuration.dataDirectory);
-		webServices.singletons(scriptManager.getService());
+				new ScriptManager(executorService, clusterManager, libraryService, configuration.dataDirectory,
+						ScriptsConfiguration.fromEnvironment());
+		builder.shutdownListener(server -> scriptManager.close());
+		webServices.singletons(scriptManager.getService(), new OutputFollowerWriter());
 		scriptServiceBuilder = new ScriptServiceBuilder(executorService, clusterManager, scriptManager);
 
 		builder.getWebServiceContext().jaxrs(webServices);
@@ -17,5 +17,18 @@ package com.qwazr.scripts;
 
 public enum TargetRuleEnum {
 
-	one, all
+	/**
+	 * One node picked at random
+	 */
+	one,
+
+	/**
+	 * Every node
+	 */
+	all,
+
+	/**
+	 * The least loaded of two nodes picked at random (power of two choices)
+	 */
+	least_loaded
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.scripts;
+
+import com.qwazr.utils.LoggerUtils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The resources consumed by the current thread, as reported by the JVM. A negative value is returned when the
+ * measure is not supported (or disabled) by the JVM.
+ */
+class ThreadResources {
+
+	private static final Logger LOGGER = LoggerUtils.getLogger(ThreadResources.class);
+
+	private static final ThreadMXBean THREAD_BEAN;
+	private static final com.sun.management.ThreadMXBean ALLOCATION_BEAN;
+
+	static {
+		ThreadMXBean threadBean = null;
+		com.sun.management.ThreadMXBean allocationBean = null;
+		try {
+			threadBean = ManagementFactory.getThreadMXBean();
+			if (!threadBean.isCurrentThreadCpuTimeSupported())
+				threadBean = null;
+			if (threadBean instanceof com.sun.management.ThreadMXBean) {
+				allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+				if (!allocationBean.isThreadAllocatedMemorySupported())
+					allocationBean = null;
+			}
+		} catch (LinkageError | RuntimeException e) {
+			LOGGER.log(Level.WARNING, e, () -> "The thread resources cannot be measured: " + e.getMessage());
+		}
+		THREAD_BEAN = threadBean;
+		ALLOCATION_BEAN = allocationBean;
+	}
+
+	/**
+	 * @return the CPU time used by the current thread in nanoseconds, or -1
+	 */
+	static long getCpuTime() {
+		if (THREAD_BEAN == null || !THREAD_BEAN.isThreadCpuTimeEnabled())
+			return -1;
+		return THREAD_BEAN.getCurrentThreadCpuTime();
+	}
+
+	/**
+	 * @return the number of bytes allocated by the current thread, or -1
+	 */
+	static long getAllocatedBytes() {
+		if (ALLOCATION_BEAN == null || !ALLOCATION_BEAN.isThreadAllocatedMemoryEnabled())
+			return -1;
+		return ALLOCATION_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
@@ -27,9 +27,12 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.function.Function;
 
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -64,11 +67,11 @@ public abstract class AbstractScriptsTest {
 
 	ScriptRunStatus<?> waitFor(final String uuid, final Function<ScriptRunStatus<?>, Boolean> function)
 			throws InterruptedException {
+		ScriptRunStatus<?> status = client.getRunStatus(uuid);
 		for (int i = 0; i < 10; i++) {
-			final ScriptRunStatus<?> status = client.getRunStatus(uuid);
 			if (function.apply(status))
 				return status;
-			Thread.sleep(1000);
+			status = client.waitRunStatus(uuid, status.state, 1000L);
 		}
 		Assert.fail("Timeout while waiting for execution");
 		return null;
@@ -106,6 +109,7 @@ public abstract class AbstractScriptsTest {
 		startClass(null);
 		startClass(TargetRuleEnum.one);
 		startClass(TargetRuleEnum.all);
+		startClass(TargetRuleEnum.least_loaded);
 	}
 
 	@Test
@@ -116,6 +120,7 @@ public abstract class AbstractScriptsTest {
 		startClassVariables(null, variables);
 		startClassVariables(TargetRuleEnum.one, variables);
 		startClassVariables(TargetRuleEnum.all, variables);
+		startClassVariables(TargetRuleEnum.least_loaded, variables);
 	}
 
 	@Test
@@ -148,6 +153,122 @@ public abstract class AbstractScriptsTest {
 		assertThat("Hello World! ScriptTestJS\nLOG", equalTo(scriptOut.trim()));
 		final String scriptErr = IOUtils.toString(client.getRunErr(finalStatus.getUuid()), StandardCharsets.UTF_8);
 		assertThat("World Hello! ScriptTestJS", equalTo(scriptErr.trim()));
+		// Offset, tail and follow
+		assertThat(IOUtils.toString(client.getRunOut(finalStatus.getUuid(), 6L, null), StandardCharsets.UTF_8),
+				equalTo(scriptOut.substring(6)));
+		assertThat(IOUtils.toString(client.getRunOut(finalStatus.getUuid(), -4L, null), StandardCharsets.UTF_8),
+				equalTo(scriptOut.substring(scriptOut.length() - 4)));
+		assertThat(IOUtils.toString(client.getRunErr(finalStatus.getUuid(), null, true), StandardCharsets.UTF_8),
+				equalTo(scriptErr));
+	}
+
+	@Test
+	public void test260runEvents() {
+		final long since = client.getRunEvents(null, 0L).next;
+		final List<ScriptRunStatus<?>> list = client.runScript(TaskNoVarScript.class.getName(), null, null);
+		Assert.assertNotNull(list);
+		final String uuid = list.get(0).uuid;
+		ScriptRunEvents events = new ScriptRunEvents(since, null);
+		for (int i = 0; i < 10; i++) {
+			events = client.getRunEvents(events.next, 1000L);
+			Assert.assertNotNull(events);
+			for (final ScriptRunStatus<?> status : events.statuses)
+				if (uuid.equals(status.uuid) && status.state == ScriptRunStatus.ScriptState.terminated)
+					return;
+		}
+		Assert.fail("The run events have not been received");
+	}
+
+	@Test
+	public void test270runScriptSync() {
+		final ScriptRunStatus<?> status =
+				client.runScriptSyncVariables("js/test.js", null, 10000L, true, Map.of("ScriptTestJS", "ScriptTestJS"));
+		Assert.assertNotNull(status);
+		Assert.assertEquals(ScriptRunStatus.ScriptState.terminated, status.state);
+		Assert.assertEquals(true, status.result);
+		assertThat(status.stdOut.trim(), equalTo("Hello World! ScriptTestJS\nLOG"));
+		final ScriptRunStatus<?> noOut = client.runScriptSync(TaskNoVarScript.class.getName(), null, 10000L, null);
+		Assert.assertEquals(ScriptRunStatus.ScriptState.terminated, noOut.state);
+		Assert.assertNull(noOut.stdOut);
+	}
+
+	@Test
+	public void test280runScriptBatch() throws InterruptedException {
+		final List<Map<String, String>> variablesList = new ArrayList<>();
+		for (int i = 0; i < 5; i++)
+			variablesList.add(Map.of("ScriptTest", "ScriptTest" + i));
+		variablesList.add(Map.of());
+		final List<ScriptRunStatus<?>> list =
+				client.runScriptBatch(TaskVariablesScript.class.getName(), null, variablesList);
+		Assert.assertEquals(variablesList.size(), list.size());
+		for (int i = 0; i < variablesList.size(); i++) {
+			final ScriptRunStatus<?> status = waitFor(list.get(i).uuid, s -> s.endTime != null);
+			Assert.assertEquals(i < 5 ? ScriptRunStatus.ScriptState.terminated : ScriptRunStatus.ScriptState.error,
+					status.state);
+		}
+		Assert.assertTrue(client.runScriptBatch(TaskVariablesScript.class.getName(), null, List.of()).isEmpty());
+	}
+
+	@Test
+	public void test285filterRunsStatus() {
+		final String name = TaskVariablesScript.class.getName();
+		final Map<String, ScriptRunStatus<?>> errors =
+				client.getRunsStatus(null, Set.of(ScriptRunStatus.ScriptState.error), name);
+		Assert.assertFalse(errors.isEmpty());
+		errors.values().forEach(status -> {
+			Assert.assertEquals(ScriptRunStatus.ScriptState.error, status.state);
+			Assert.assertEquals(name, status.name);
+		});
+		final Map<String, ScriptRunStatus<?>> all = client.getRunsStatus();
+		Assert.assertTrue(all.size() > errors.size());
+		Assert.assertTrue(client.getRunsStatus(System.currentTimeMillis() + 60_000, null, null).isEmpty());
+		Assert.assertTrue(client.getRunsStatus(null, null, "dummy").isEmpty());
+	}
+
+	@Test
+	public void test290getLoad() {
+		final ScriptLoad load = client.getLoad();
+		Assert.assertNotNull(load);
+		Assert.assertTrue(load.maxConcurrency > 0);
+		Assert.assertTrue(load.running >= 0);
+		Assert.assertTrue(load.queued >= 0);
+	}
+
+	@Test
+	public void test295idempotencyKey() {
+		final String key = UUID.randomUUID().toString();
+		final List<ScriptRunStatus<?>> first =
+				client.runScript(TaskNoVarScript.class.getName(), null, null, null, key);
+		final List<ScriptRunStatus<?>> second =
+				client.runScript(TaskNoVarScript.class.getName(), null, null, null, key);
+		Assert.assertEquals(1, first.size());
+		Assert.assertEquals(1, second.size());
+		Assert.assertEquals(first.get(0).uuid, second.get(0).uuid);
+		final List<ScriptRunStatus<?>> other =
+				client.runScript(TaskNoVarScript.class.getName(), null, null, null, key + "-other");
+		Assert.assertNotEquals(first.get(0).uuid, other.get(0).uuid);
+	}
+
+	@Test
+	public void test296timeLimit() throws InterruptedException {
+		final List<ScriptRunStatus<?>> list = client.runScript("js/loop.js", null, null, null, null, 200L);
+		final ScriptRunStatus<?> finalStatus =
+				waitFor(list.get(0).uuid, status -> status.state == ScriptRunStatus.ScriptState.timeout);
+		Assert.assertNotNull(finalStatus.endTime);
+		Assert.assertTrue(finalStatus.error.contains("Time limit exceeded"));
+	}
+
+	@Test
+	public void test297cancelRun() throws InterruptedException {
+		final List<ScriptRunStatus<?>> list = client.runScript("js/loop.js", null, null);
+		final String uuid = list.get(0).uuid;
+		waitFor(uuid, status -> status.state == ScriptRunStatus.ScriptState.running);
+		client.cancelRun(uuid);
+		final ScriptRunStatus<?> finalStatus =
+				waitFor(uuid, status -> status.state == ScriptRunStatus.ScriptState.cancelled);
+		Assert.assertNotNull(finalStatus.endTime);
+		// Cancelling a finished run has no effect
+		Assert.assertEquals(ScriptRunStatus.ScriptState.cancelled, client.cancelRun(uuid).state);
 	}
 
 	@Test
@@ -196,6 +317,7 @@ public abstract class AbstractScriptsTest {
 		checkNotFound(() -> client.getRunStatus("dummy"));
 		checkNotFound(() -> client.getRunOut("dummy"));
 		checkNotFound(() -> client.getRunErr("dummy"));
+		checkNotFound(() -> client.cancelRun("dummy"));
 	}
 
 }
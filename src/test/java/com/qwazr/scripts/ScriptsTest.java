@@ -18,7 +18,12 @@ package com.qwazr.scripts;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.qwazr.server.RemoteService;
+import com.qwazr.server.ServerException;
+import com.qwazr.utils.LoggerUtils;
+import com.qwazr.utils.ObjectMappers;
 import com.qwazr.utils.concurrent.ExecutorUtils;
+import org.apache.commons.io.FileUtils;
+import org.graalvm.polyglot.Context;
 import org.graalvm.polyglot.Value;
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -31,16 +36,30 @@ import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
 
 @RunWith(Suite.class)
@@ -108,6 +127,464 @@ public class ScriptsTest {
 			getClient().runSync(Paths.get("js/javacall.js").toString(), Map.of("javacall", new JavaCall()));
 		}
 
+		@Test
+		public void scriptCacheTest() {
+			final Map<String, String> variables = Map.of("ScriptTestJS", "ScriptTestJS");
+			getClient().runSync("js/test.js", variables);
+			final ScriptCache.Statistics before = scriptManager.getScriptCacheStatistics();
+			Assert.assertNotNull(before);
+			getClient().runSync("js/test.js", variables);
+			final ScriptCache.Statistics after = scriptManager.getScriptCacheStatistics();
+			Assert.assertEquals(before.hits + 1, after.hits);
+			Assert.assertEquals(before.misses, after.misses);
+		}
+
+		@Test
+		public void polyglotRunnerTest() {
+			final ScriptManager polyglotManager = new ScriptManager(executor, (String) null, null, Paths.get("src/test"),
+					ScriptsConfiguration.of().jsRunner(ScriptsConfiguration.JsRunner.polyglot).build());
+			try {
+				final RunThreadAbstract<?> runThread =
+						polyglotManager.getService().runSync("js/test.js", Map.of("ScriptTestJS", "ScriptTestJS"));
+				Assert.assertEquals(ScriptRunStatus.ScriptState.terminated, runThread.getStatus().state);
+				assertThat(runThread.getOut().trim(), equalTo("Hello World! ScriptTestJS\nLOG"));
+				assertThat(runThread.getErr().trim(), equalTo("World Hello! ScriptTestJS"));
+			} finally {
+				polyglotManager.close();
+			}
+		}
+
+		@Test
+		public void retentionTest() throws InterruptedException {
+			final ScriptManager manager = new ScriptManager(executor, (String) null, null, Paths.get("src/test"),
+					ScriptsConfiguration.of().retentionTime(200).retentionCount(2).build());
+			try {
+				final RunThreadAbstract<?> run1 = manager.runSync(TaskNoVarScript.class.getName(), null);
+				final RunThreadAbstract<?> run2 = manager.runSync(TaskNoVarScript.class.getName(), null);
+				final RunThreadAbstract<?> run3 = manager.runSync(TaskNoVarScript.class.getName(), null);
+				// Count based retention (server setting)
+				Assert.assertNull(manager.getRunThread(run1.getUUID()));
+				Assert.assertNotNull(manager.getRunThread(run2.getUUID()));
+				Assert.assertNotNull(manager.getRunThread(run3.getUUID()));
+				// Count based retention (script definition)
+				final RunThreadAbstract<?> js1 = manager.runSync("js/retention.js", null);
+				final RunThreadAbstract<?> js2 = manager.runSync("js/retention.js", null);
+				Assert.assertNull(manager.getRunThread(js1.getUUID()));
+				Assert.assertNotNull(manager.getRunThread(js2.getUUID()));
+				// Time based retention
+				for (int i = 0; i < 50 && manager.getRunThread(js2.getUUID()) != null; i++)
+					Thread.sleep(100);
+				Assert.assertNull(manager.getRunThread(run3.getUUID()));
+				Assert.assertNull(manager.getRunThread(js2.getUUID()));
+			} finally {
+				manager.close();
+			}
+		}
+
+		@Test
+		public void outputBufferTest() throws IOException {
+			final Path outputDirectory = Files.createTempDirectory("scripts-output");
+			final ScriptManager manager = new ScriptManager(executor, (String) null, null, Paths.get("src/test"),
+					ScriptsConfiguration.of()
+							.outputMemorySize(100)
+							.outputMaxSize(500)
+							.outputDirectory(outputDirectory)
+							.build());
+			try {
+				final RunThreadAbstract<?> runThread = manager.runSync("js/output.js", null);
+				Assert.assertTrue(Files.exists(outputDirectory.resolve(runThread.getUUID() + ".out")));
+				final String out = runThread.getOut();
+				// The beginning comes from the spill file, the end from the memory ring
+				Assert.assertTrue(out.startsWith("Line 0\nLine 1\n"));
+				Assert.assertTrue(out.endsWith("\n[... 290 bytes truncated ...]\n"));
+				Assert.assertEquals(500, runThread.outputBuffer.size());
+				runThread.close();
+				Assert.assertFalse(Files.exists(outputDirectory.resolve(runThread.getUUID() + ".out")));
+				// Without the spill file only the memory ring is available
+				Assert.assertTrue(runThread.getOut().startsWith("[... 400 bytes truncated ...]\n"));
+			} finally {
+				manager.close();
+			}
+		}
+
+		@Test
+		public void fromJsonTest() throws IOException {
+			try (final Context context = Context.create("js")) {
+				final Value value = context.eval("js",
+						"({callKey: 'callValue', list: [1, 2, 3, 4, 5], map: {key1: 'value1', key2: 'value2'}})");
+				final Json json = ScriptUtils.fromJson(value, Json.class);
+				assertThat(json.callKey, equalTo("callValue"));
+				assertThat(json.list, equalTo(Arrays.asList(1, 2, 3, 4, 5)));
+				assertThat(json.map, equalTo(Map.of("key1", "value1", "key2", "value2")));
+				final Map<?, ?> numbers =
+						ScriptUtils.fromJson(context.eval("js", "({long: 9007199254740991, double: 0.1})"), Map.class);
+				assertThat(numbers.get("long"), equalTo(9007199254740991L));
+				assertThat(numbers.get("double"), equalTo(0.1));
+			}
+		}
+
+		@Test
+		public void toJavaTest() {
+			try (final Context context = Context.create("js")) {
+				final Map<?, ?> map = (Map<?, ?>) ScriptUtils.toJava(context.eval("js",
+						"({int: 1, long: 9007199254740991, double: 0.1, longs: [1, 2, 3], doubles: [1, 2.5], " +
+								"mixed: [1, 'a', null], empty: [], nested: {flag: true}, " +
+								"exact: [9007199254740993n, 0.5]})"));
+				assertThat(map.get("int"), equalTo(1));
+				assertThat(map.get("long"), equalTo(9007199254740991L));
+				assertThat(map.get("double"), equalTo(0.1));
+				Assert.assertArrayEquals(new long[] { 1, 2, 3 }, (long[]) map.get("longs"));
+				Assert.assertArrayEquals(new double[] { 1, 2.5 }, (double[]) map.get("doubles"), 0);
+				assertThat(map.get("mixed"), equalTo(Arrays.asList(1, "a", null)));
+				assertThat(map.get("empty"), equalTo(List.of()));
+				assertThat(map.get("nested"), equalTo(Map.of("flag", true)));
+				// A double[] would lose the precision of the integer
+				assertThat(map.get("exact"), equalTo(Arrays.asList(9007199254740993L, 0.5)));
+			}
+		}
+
+		@Test
+		public void metricsTest() throws IOException {
+			final ScriptManager manager = new ScriptManager(executor, (String) null, null, Paths.get("src/test"));
+			try {
+				final String name = TaskVariablesScript.class.getName();
+				manager.runSync(name, Map.of("ScriptTest", "ScriptTest"));
+				final ScriptRunStatus<?> status =
+						manager.runSync(name, Map.of("ScriptTest", "ScriptTest")).getStatus();
+				Assert.assertNotNull(status.outputBytes);
+				if (status.cpuTime != null)
+					Assert.assertTrue(status.cpuTime >= 0);
+				if (status.allocatedBytes != null)
+					Assert.assertTrue(status.allocatedBytes >= 0);
+				manager.runSync(name, Map.of());
+				final ScriptMetrics metrics = manager.getService().getMetrics();
+				Assert.assertEquals(3, metrics.registrySize);
+				final ScriptMetrics.Script script = metrics.scripts.get(name);
+				Assert.assertEquals(2, script.success);
+				Assert.assertEquals(1, script.error);
+				Assert.assertEquals(3, script.runDuration.count);
+				Assert.assertEquals(0, script.queueWait.count);
+				Assert.assertTrue(script.runDuration.p99 <= script.runDuration.max);
+
+				final ScriptMetrics parsed =
+						ObjectMappers.JSON.readValue(ObjectMappers.JSON.writeValueAsString(metrics), ScriptMetrics.class);
+				Assert.assertEquals(metrics.scripts, parsed.scripts);
+				final ScriptMetrics merged = ScriptMetrics.merge(List.of(metrics, parsed));
+				Assert.assertEquals(4, merged.scripts.get(name).success);
+				Assert.assertEquals(script.runDuration.p50, merged.scripts.get(name).runDuration.p50);
+
+				final Map<String, ScriptMetrics.Script> top = manager.getService().getTopScripts(CostEnum.duration, 1);
+				Assert.assertEquals(Set.of(name), top.keySet());
+				Assert.assertTrue(manager.getService().getTopScripts(CostEnum.cpu, 0).isEmpty());
+
+				final String text = manager.getService().getMetricsText();
+				assertThat(text, containsString(
+						"qwazr_scripts_runs_total{script=\"" + name + "\",outcome=\"success\"} 2\n"));
+				assertThat(text,
+						containsString("qwazr_scripts_run_duration_seconds_count{script=\"" + name + "\"} 3\n"));
+			} finally {
+				manager.close();
+			}
+		}
+
+		@Test
+		public void latencyHistogramTest() {
+			final LatencyHistogram histogram = new LatencyHistogram();
+			for (int i = 1; i <= 1000; i++)
+				histogram.record(i * 1000L);
+			final ScriptMetrics.Latency latency = histogram.getSnapshot();
+			Assert.assertEquals(1000, latency.count);
+			Assert.assertEquals(1_000_000, latency.max);
+			Assert.assertEquals(500_000, latency.p50, 500_000 * 0.04);
+			Assert.assertEquals(990_000, latency.p99, 990_000 * 0.04);
+			for (long value : new long[] { 0, 63, 64, 1000, 123_456_789, Long.MAX_VALUE })
+				Assert.assertTrue(LatencyHistogram.highestValue(LatencyHistogram.index(value)) >= value);
+		}
+
+		@Test
+		public void virtualExecutorTest() throws InterruptedException {
+			boolean supported;
+			try {
+				ScriptExecutor.newVirtualThreadPerTaskExecutor().shutdown();
+				supported = true;
+			} catch (UnsupportedOperationException e) {
+				supported = false;
+			}
+			final List<String> messages = new CopyOnWriteArrayList<>();
+			final Handler handler = new Handler() {
+				@Override
+				public void publish(final LogRecord record) {
+					messages.add(record.getMessage());
+				}
+
+				@Override
+				public void flush() {
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+			final Logger logger = LoggerUtils.getLogger(ScriptManager.class);
+			logger.addHandler(handler);
+			final ScriptManager manager;
+			try {
+				manager = new ScriptManager(executor, (String) null, null, Paths.get("src/test"),
+						ScriptsConfiguration.of().executorMode(ScriptsConfiguration.ExecutorMode.virtual).build());
+			} finally {
+				logger.removeHandler(handler);
+			}
+			try {
+				// Without virtual threads, the runs are executed by the platform thread pool
+				final String expected =
+						supported ? "Scripts are executed by virtual threads" : "Fallback to the platform threads";
+				Assert.assertTrue(messages.toString(),
+						messages.stream().anyMatch(message -> message != null && message.contains(expected)));
+				final int count = TaskNoVarScript.EXECUTION_COUNT.get();
+				final ScriptRunStatus<?> status = manager.runAsync(TaskNoVarScript.class.getName(), null);
+				Assert.assertEquals(ScriptRunStatus.ScriptState.terminated,
+						manager.getRunThread(status.uuid).waitStatus(null, 10_000).state);
+				Assert.assertEquals(count + 1, TaskNoVarScript.EXECUTION_COUNT.get());
+			} finally {
+				manager.close();
+			}
+		}
+
+		@Test
+		public void scriptClassTest() {
+			final ScriptClass scriptClass = ScriptClass.of(TaskNoVarScript.class.getName());
+			Assert.assertEquals(TaskNoVarScript.class, scriptClass.scriptClass);
+			Assert.assertFalse(scriptClass.injectable);
+			final Object script = scriptClass.newInstance();
+			Assert.assertEquals(TaskNoVarScript.class, script.getClass());
+			Assert.assertNotSame(script, scriptClass.newInstance());
+			Assert.assertTrue(ScriptClass.of(AnnotatedScript.class.getName()).injectable);
+			Assert.assertThrows(ServerException.class, () -> ScriptClass.of("dummy"));
+		}
+
+		@Test
+		public void reusableScriptTest() {
+			for (int i = 0; i < 3; i++) {
+				Assert.assertEquals(1, scriptManager.runSync(SharedScript.class.getName(), null).getResult());
+				Assert.assertEquals(1, scriptManager.runSync(PooledScript.class.getName(), null).getResult());
+			}
+		}
+
+		@Test
+		public void cronExpressionTest() {
+			final ZoneId utc = ZoneId.of("UTC");
+			final long start = ZonedDateTime.of(2020, 1, 31, 23, 58, 30, 0, utc).toInstant().toEpochMilli();
+			Assert.assertEquals(ZonedDateTime.of(2020, 1, 31, 23, 59, 0, 0, utc).toInstant().toEpochMilli(),
+					new CronExpression("* * * * *").next(start, utc));
+			Assert.assertEquals(ZonedDateTime.of(2020, 2, 1, 0, 0, 0, 0, utc).toInstant().toEpochMilli(),
+					new CronExpression("*/15 * * * *").next(start, utc));
+			Assert.assertEquals(ZonedDateTime.of(2020, 2, 1, 0, 5, 0, 0, utc).toInstant().toEpochMilli(),
+					new CronExpression("5/15 * * * *").next(start, utc));
+			// 2020-02-03 is the first Monday after the start
+			Assert.assertEquals(ZonedDateTime.of(2020, 2, 3, 9, 30, 0, 0, utc).toInstant().toEpochMilli(),
+					new CronExpression("30 9 * * 1-5/2").next(start, utc));
+			Assert.assertEquals(ZonedDateTime.of(2020, 2, 29, 0, 0, 0, 0, utc).toInstant().toEpochMilli(),
+					new CronExpression("0 0 29 2 *").next(start, utc));
+			Assert.assertThrows(IllegalArgumentException.class, () -> new CronExpression("60 * * * *"));
+			Assert.assertThrows(IllegalArgumentException.class, () -> new CronExpression("* * *"));
+		}
+
+		@Test
+		public void rendezvousHashTest() {
+			final List<String> nodes = List.of("http://node1:9091", "http://node2:9091", "http://node3:9091");
+			final Map<String, Integer> owned = new HashMap<>();
+			for (int i = 0; i < 300; i++) {
+				final String owner = RendezvousHash.getOwner("schedule" + i, nodes);
+				Assert.assertEquals(owner, RendezvousHash.getOwner("schedule" + i, List.of(nodes.get(2),
+						nodes.get(0), nodes.get(1))));
+				owned.merge(owner, 1, Integer::sum);
+				// Only the schedules of the removed node move
+				if (!owner.equals(nodes.get(2)))
+					Assert.assertEquals(owner, RendezvousHash.getOwner("schedule" + i, nodes.subList(0, 2)));
+			}
+			Assert.assertEquals(3, owned.size());
+			Assert.assertNull(RendezvousHash.getOwner("schedule", List.of()));
+		}
+
+		@Test
+		public void schedulerTest() throws IOException, InterruptedException {
+			final Path rootDirectory = Files.createTempDirectory("scripts-schedules");
+			Files.write(rootDirectory.resolve(ScriptsConfiguration.DEFAULT_SCHEDULES_FILE_NAME),
+					("{\"slow\": {\"script\": \"" + ScheduledScript.class.getName() +
+							"\", \"interval\": 50, \"misfire\": \"skip\"}, \"invalid\": {\"interval\": 50}}")
+							.getBytes(StandardCharsets.UTF_8));
+			final ScriptManager manager = new ScriptManager(executor, (String) null, null, rootDirectory);
+			try {
+				for (int i = 0; i < 100 && ScheduledScript.RUNS.get() < 3; i++)
+					Thread.sleep(100);
+				Assert.assertTrue(ScheduledScript.RUNS.get() >= 3);
+				// The runs never overlap
+				Assert.assertEquals(1, ScheduledScript.MAX_CONCURRENT.get());
+			} finally {
+				manager.close();
+				FileUtils.deleteDirectory(rootDirectory.toFile());
+			}
+		}
+
+		@Test
+		public void maxConcurrencyTest() throws InterruptedException, IOException {
+			final String name = LimitedScript.class.getName();
+			final ScriptRunStatus<?> first = scriptManager.runAsync(name, null, PriorityEnum.normal, "key", null);
+			final ScriptRunStatus<?> second = scriptManager.runAsync(name, null);
+			try {
+				scriptManager.runAsync(name, null);
+				Assert.fail("Exception not thrown");
+			} catch (ServerException e) {
+				Assert.assertEquals(429, e.getStatusCode());
+			}
+			// A duplicate submission does not count
+			Assert.assertEquals(first.uuid, scriptManager.runAsync(name, null, PriorityEnum.normal, "key", null).uuid);
+			LimitedScript.LATCH.countDown();
+			scriptManager.getRunThread(first.uuid).waitStatus(null, 10_000);
+			scriptManager.getRunThread(second.uuid).waitStatus(null, 10_000);
+			// The slots are given back at the end of the runs
+			Assert.assertNotNull(scriptManager.runSync(name, null).getStatus());
+			// The limit of a JS script is given by its definition file
+			Assert.assertEquals(Integer.valueOf(1),
+					ObjectMappers.JSON.readValue("{\"max_concurrency\": 1}", ScriptDefinition.class).maxConcurrency);
+		}
+
+		@Test
+		public void cancelAndTimeLimitTest() throws InterruptedException {
+			final ScriptManager manager = new ScriptManager(executor, (String) null, null, Paths.get("src/test"),
+					ScriptsConfiguration.of().maxConcurrency(1).build());
+			try {
+				final String name = SleepingScript.class.getName();
+				final RunThreadAbstract<?> running = manager.getRunThread(manager.runAsync(name, null).uuid);
+				final RunThreadAbstract<?> queued = manager.getRunThread(manager.runAsync(name, null).uuid);
+				for (int i = 0; i < 100 && running.getState() != ScriptRunStatus.ScriptState.running; i++)
+					Thread.sleep(50);
+				Assert.assertEquals(ScriptRunStatus.ScriptState.running, running.getState());
+				// A queued run leaves the queue and is finished right away
+				Assert.assertEquals(ScriptRunStatus.ScriptState.cancelled, manager.cancelRun(queued).state);
+				Assert.assertEquals(0, manager.getLoad().queued);
+				// A running run is interrupted
+				manager.cancelRun(running);
+				Assert.assertEquals(ScriptRunStatus.ScriptState.cancelled, running.waitStatus(null, 10_000).state);
+
+				// The time limit of the script definition
+				final ScriptRunStatus<?> timedOut = manager.runSync(TimedScript.class.getName(), null).getStatus();
+				Assert.assertEquals(ScriptRunStatus.ScriptState.timeout, timedOut.state);
+				Assert.assertTrue(timedOut.error.contains("Time limit exceeded: 100 ms"));
+				Assert.assertEquals(Long.valueOf(100), ScriptDefinition.of(TimedScript.class).timeLimit);
+
+				// The time limit requested for the run
+				final RunThreadAbstract<?> limited =
+						manager.getRunThread(manager.runAsync(name, null, PriorityEnum.normal, null, 100L).uuid);
+				Assert.assertEquals(ScriptRunStatus.ScriptState.timeout, limited.waitStatus(null, 10_000).state);
+
+				// The metrics are recorded once the listener is called, after the final state
+				ScriptMetrics.Script script = manager.getMetrics().scripts.get(name);
+				for (int i = 0; i < 100 && script.timeout == 0; i++) {
+					Thread.sleep(50);
+					script = manager.getMetrics().scripts.get(name);
+				}
+				Assert.assertEquals(2, script.cancelled);
+				Assert.assertEquals(1, script.timeout);
+				Assert.assertEquals(0, script.success);
+				// The run cancelled in the queue has never been executed
+				Assert.assertEquals(2, script.runDuration.count);
+			} finally {
+				manager.close();
+			}
+		}
+
+		public static class SleepingScript implements Runnable {
+
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(60_000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		@ScriptOptions(timeLimit = 100)
+		public static class TimedScript extends SleepingScript {
+		}
+
+		@ScriptOptions(maxConcurrency = 2)
+		public static class LimitedScript implements Runnable {
+
+			private final static CountDownLatch LATCH = new CountDownLatch(1);
+
+			@Override
+			public void run() {
+				try {
+					LATCH.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		public static class ScheduledScript implements Runnable {
+
+			private final static AtomicInteger RUNS = new AtomicInteger();
+			private final static AtomicInteger CONCURRENT = new AtomicInteger();
+			private final static AtomicInteger MAX_CONCURRENT = new AtomicInteger();
+
+			@Override
+			public void run() {
+				MAX_CONCURRENT.accumulateAndGet(CONCURRENT.incrementAndGet(), Math::max);
+				try {
+					Thread.sleep(120);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					CONCURRENT.decrementAndGet();
+					RUNS.incrementAndGet();
+				}
+			}
+		}
+
+		@ScriptOptions(threadSafe = true)
+		public static class SharedScript implements ScriptInterface<Integer> {
+
+			private final static AtomicInteger INSTANCES = new AtomicInteger();
+
+			public SharedScript() {
+				INSTANCES.incrementAndGet();
+			}
+
+			@Override
+			public Integer run(final Map<String, ?> variables) {
+				return INSTANCES.get();
+			}
+		}
+
+		@ScriptOptions(poolSize = 2)
+		public static class PooledScript implements ScriptInterface<Integer> {
+
+			private final static AtomicInteger INSTANCES = new AtomicInteger();
+
+			public PooledScript() {
+				INSTANCES.incrementAndGet();
+			}
+
+			@Override
+			public Integer run(final Map<String, ?> variables) {
+				return INSTANCES.get();
+			}
+		}
+
+		public static class AnnotatedScript implements Runnable {
+
+			@JsonProperty
+			public String field;
+
+			@Override
+			public void run() {
+			}
+		}
+
 		public static class JavaCall {
 
 			public void call(Value value) throws IOException {
@@ -0,0 +1,2 @@
+for (var i = 0; i < 100; i++)
+	print('Line ' + i);